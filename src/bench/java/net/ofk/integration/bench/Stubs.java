@@ -0,0 +1,35 @@
+package net.ofk.integration.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates stub implementations of interfaces for benchmarks.
+ * A stub does nothing and returns default values unless its handler says otherwise.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public final class Stubs {
+  private Stubs() {
+  }
+
+  public static <T> T stub(final Class<T> cls) {
+    return Stubs.stub(cls, (proxy, method, args) -> Stubs.getDefault(method.getReturnType()));
+  }
+
+  public static <T> T stub(final Class<T> cls, final InvocationHandler handler) {
+    return cls.cast(Proxy.newProxyInstance(cls.getClassLoader(), new Class<?>[] {cls}, handler));
+  }
+
+  public static Object getDefault(final Class<?> type) {
+    Object result = null;
+    if (type == boolean.class) {
+      result = false;
+    } else if (type == int.class) {
+      result = 0;
+    } else if (type == long.class) {
+      result = 0L;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,82 @@
+package net.ofk.integration.cdi.jpa;
+
+import net.ofk.integration.bench.NoopEntityManager;
+import net.ofk.integration.bench.Stubs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the overhead of the bulk writer with a plain persist loop through the delegating entity manager.
+ * The underlying entity manager does nothing and there is no database, so no statements are sent and
+ * JDBC batching isn't measured at all: the difference is only the cost of the writer itself
+ * against looking up the thread's entity manager on every call.
+ * Gains of batched inserts depend on the provider and the database and have to be measured against them.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@State(Scope.Thread)
+public class BulkWriterBenchmark {
+  private static final int ENTITY_COUNT = 10000;
+
+  private DelegatingEntityManager em;
+  private List<Object> entities;
+
+  @Setup
+  public void setUp() {
+    EntityManager target = new NoopEntityManager();
+    EntityManagerFactory emf = Stubs.stub(EntityManagerFactory.class, (proxy, method, args) ->
+      "createEntityManager".equals(method.getName()) ? target : Stubs.getDefault(method.getReturnType()));
+    EntityManagerFactoryStore store = new EntityManagerFactoryStore() {
+      @Override
+      EntityManagerFactory createEMF(final String puName) {
+        return emf;
+      }
+    };
+    this.em = new DelegatingEntityManager("benchmarkPU", store);
+
+    this.entities = new ArrayList<>(BulkWriterBenchmark.ENTITY_COUNT);
+    for (int i = 0; i < BulkWriterBenchmark.ENTITY_COUNT; i++) {
+      this.entities.add(i % 2 == 0 ? Integer.valueOf(i) : Long.valueOf(i));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.em.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BulkWriterBenchmark.ENTITY_COUNT)
+  public long persistLoop() {
+    long result = 0;
+
+    for (Object entity : this.entities) {
+      this.em.persist(entity);
+      result+= 1;
+
+      if (result % BulkWriter.DEFAULT_BATCH_SIZE == 0) {
+        this.em.flush();
+        this.em.clear();
+      }
+    }
+    this.em.flush();
+    this.em.clear();
+
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BulkWriterBenchmark.ENTITY_COUNT)
+  public long bulkWriter() {
+    return new BulkWriter(this.em).persist(this.entities.iterator());
+  }
+}
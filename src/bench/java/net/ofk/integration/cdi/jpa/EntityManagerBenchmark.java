@@ -0,0 +1,84 @@
+package net.ofk.integration.cdi.jpa;
+
+import net.ofk.integration.bench.Stubs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Measures looking up thread's entity managers and counting their references
+ * with stub entity managers which do nothing.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@State(Scope.Benchmark)
+public class EntityManagerBenchmark {
+  private EntityManagerFactoryStore store;
+  private DelegatingEntityManager em;
+
+  @Setup
+  public void setUp() {
+    EntityManagerFactory emf = Stubs.stub(EntityManagerFactory.class, (proxy, method, args) ->
+      "createEntityManager".equals(method.getName()) ? Stubs.stub(EntityManager.class) : Stubs.getDefault(method.getReturnType()));
+
+    this.store = new EntityManagerFactoryStore() {
+      @Override
+      EntityManagerFactory createEMF(final String puName) {
+        return emf;
+      }
+    };
+    this.em = new DelegatingEntityManager("benchmarkPU", this.store);
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.em.close();
+  }
+
+  @Benchmark
+  public EntityManager getEM() {
+    return this.em.getEM();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public EntityManager getEMConcurrently() {
+    return this.em.getEM();
+  }
+
+  /**
+   * The entity manager is created and closed on every invocation.
+   */
+  @Benchmark
+  public EntityManager acquireRelease() {
+    EntityManager result = this.store.acquire("benchmarkPU", Thread.currentThread());
+    this.store.release("benchmarkPU", Thread.currentThread());
+    return result;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public EntityManager acquireReleaseConcurrently() {
+    EntityManager result = this.store.acquire("benchmarkPU", Thread.currentThread());
+    this.store.release("benchmarkPU", Thread.currentThread());
+    return result;
+  }
+
+  /**
+   * The entity manager is held by the delegating entity manager, only the reference count changes.
+   */
+  @Benchmark
+  public EntityManager acquireReleaseReferenced() {
+    this.em.getEM();
+
+    EntityManager result = this.store.acquire("benchmarkPU", Thread.currentThread());
+    this.store.release("benchmarkPU", Thread.currentThread());
+    return result;
+  }
+}
@@ -0,0 +1,75 @@
+package net.ofk.integration.cdi.jpa;
+
+import net.ofk.integration.bench.NoopEntityManager;
+import net.ofk.integration.bench.Stubs;
+import net.ofk.integration.cdi.jta.TransactionGate;
+import net.ofk.integration.cdi.jta.TransactionInterceptor;
+import net.ofk.integration.cdi.jta.TransactionStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.interceptor.InvocationContext;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.lang.reflect.Method;
+
+/**
+ * Measures a steady-state find() through the delegating entity manager
+ * inside a transactional method joining an existing transaction.
+ * Run with the gc profiler (-Dbench.args="-prof gc") to check that the path allocates nothing,
+ * the normalized allocation rate should stay at zero bytes per operation.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@State(Scope.Thread)
+public class FindBenchmark {
+  private static final Long PRIMARY_KEY = 1L;
+
+  private DelegatingEntityManager em;
+  private TransactionInterceptor interceptor;
+  private InvocationContext ctx;
+
+  @Setup
+  public void setUp() throws Exception {
+    EntityManager target = new NoopEntityManager();
+    EntityManagerFactory emf = Stubs.stub(EntityManagerFactory.class, (proxy, method, args) ->
+      "createEntityManager".equals(method.getName()) ? target : Stubs.getDefault(method.getReturnType()));
+    EntityManagerFactoryStore store = new EntityManagerFactoryStore() {
+      @Override
+      EntityManagerFactory createEMF(final String puName) {
+        return emf;
+      }
+    };
+    this.em = new DelegatingEntityManager("benchmarkPU", store);
+
+    Transaction tx = Stubs.stub(Transaction.class);
+    this.interceptor = new TransactionInterceptor();
+    this.interceptor.tm = Stubs.stub(TransactionManager.class, (proxy, method, args) ->
+      "getTransaction".equals(method.getName()) ? tx : Stubs.getDefault(method.getReturnType()));
+    this.interceptor.resources = store;
+    this.interceptor.gate = new TransactionGate();
+    this.interceptor.statistics = new TransactionStatistics();
+    this.interceptor.listener = new PersistenceTransactionListener();
+
+    Method find = FindBenchmark.class.getMethod("find");
+    this.ctx = Stubs.stub(InvocationContext.class, (proxy, method, args) ->
+      "proceed".equals(method.getName()) ? this.em.find(Object.class, FindBenchmark.PRIMARY_KEY) :
+      "getMethod".equals(method.getName()) ? find :
+      Stubs.getDefault(method.getReturnType()));
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.em.close();
+  }
+
+  @Benchmark
+  public Object find() throws Exception {
+    return this.interceptor.intercept(this.ctx);
+  }
+}
@@ -0,0 +1,101 @@
+package net.ofk.integration.cdi.jpa;
+
+import net.ofk.integration.bench.NoopEntityManager;
+import net.ofk.integration.bench.Stubs;
+import net.ofk.integration.cdi.jta.ReadOnly;
+import net.ofk.integration.cdi.jta.TransactionGate;
+import net.ofk.integration.cdi.jta.TransactionInterceptor;
+import net.ofk.integration.cdi.jta.TransactionStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.interceptor.InvocationContext;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.TransactionManager;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a read-only method executed without a transaction with the same method
+ * executed in a new transaction which is committed.
+ * The stub transaction manager spends the given number of microseconds in every commit
+ * to stand for the commit round trip of a database, the stub entity manager does nothing.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@State(Scope.Thread)
+public class ReadOnlyBenchmark {
+  /**
+   * If true the intercepted method is annotated with {@link ReadOnly}.
+   */
+  @Param({"false", "true"})
+  public boolean readOnly;
+
+  /**
+   * Time the stub transaction manager spends in a commit.
+   */
+  @Param({"0", "50"})
+  public long commitMicros;
+
+  private DelegatingEntityManager em;
+  private TransactionInterceptor interceptor;
+  private InvocationContext ctx;
+
+  @ReadOnly
+  public void read() {
+  }
+
+  public void write() {
+  }
+
+  @Setup
+  public void setUp() throws Exception {
+    EntityManager target = new NoopEntityManager();
+    EntityManagerFactory emf = Stubs.stub(EntityManagerFactory.class, (proxy, method, args) ->
+      "createEntityManager".equals(method.getName()) ? target : Stubs.getDefault(method.getReturnType()));
+    EntityManagerFactoryStore store = new EntityManagerFactoryStore() {
+      @Override
+      EntityManagerFactory createEMF(final String puName) {
+        return emf;
+      }
+    };
+    this.em = new DelegatingEntityManager("benchmarkPU", store);
+
+    long commitNanos = TimeUnit.MICROSECONDS.toNanos(this.commitMicros);
+    this.interceptor = new TransactionInterceptor();
+    this.interceptor.tm = Stubs.stub(TransactionManager.class, (proxy, method, args) -> {
+      if ("commit".equals(method.getName())) {
+        long end = System.nanoTime() + commitNanos;
+        while (System.nanoTime() < end) {
+          // Spins to stand for the commit round trip.
+        }
+      }
+      return Stubs.getDefault(method.getReturnType());
+    });
+    this.interceptor.resources = store;
+    this.interceptor.gate = new TransactionGate();
+    this.interceptor.statistics = new TransactionStatistics();
+    this.interceptor.listener = new PersistenceTransactionListener();
+
+    Method intercepted = ReadOnlyBenchmark.class.getMethod(this.readOnly ? "read" : "write");
+    this.ctx = Stubs.stub(InvocationContext.class, (proxy, method, args) ->
+      "proceed".equals(method.getName()) ? this.em.find(Object.class, 1L) :
+      "getMethod".equals(method.getName()) ? intercepted :
+      Stubs.getDefault(method.getReturnType()));
+  }
+
+  @TearDown
+  public void tearDown() {
+    this.em.close();
+  }
+
+  @Benchmark
+  public Object intercept() throws Exception {
+    return this.interceptor.intercept(this.ctx);
+  }
+}
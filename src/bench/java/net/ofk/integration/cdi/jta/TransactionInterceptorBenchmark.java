@@ -0,0 +1,66 @@
+package net.ofk.integration.cdi.jta;
+
+import net.ofk.integration.bench.Stubs;
+import net.ofk.integration.cdi.jpa.EntityManagerFactoryStore;
+import net.ofk.integration.cdi.jpa.PersistenceTransactionListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import javax.interceptor.InvocationContext;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.lang.reflect.Method;
+
+/**
+ * Measures the overhead of the transaction interceptor
+ * with a stub transaction manager which does nothing.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@State(Scope.Benchmark)
+public class TransactionInterceptorBenchmark {
+  /**
+   * If true the intercepted method joins an existing transaction,
+   * otherwise the interceptor begins and commits a new one.
+   */
+  @Param({"false", "true"})
+  public boolean joined;
+
+  private TransactionInterceptor interceptor;
+  private InvocationContext ctx;
+
+  @Setup
+  public void setUp() throws Exception {
+    Transaction tx = Stubs.stub(Transaction.class);
+    Object result = new Object();
+    Method intercept = TransactionInterceptorBenchmark.class.getMethod("intercept");
+
+    this.interceptor = new TransactionInterceptor();
+    this.interceptor.tm = Stubs.stub(TransactionManager.class, (proxy, method, args) ->
+      "getTransaction".equals(method.getName()) && this.joined ? tx : Stubs.getDefault(method.getReturnType()));
+    this.interceptor.resources = new EntityManagerFactoryStore();
+    this.interceptor.gate = new TransactionGate();
+    this.interceptor.statistics = new TransactionStatistics();
+    this.interceptor.listener = new PersistenceTransactionListener();
+
+    this.ctx = Stubs.stub(InvocationContext.class, (proxy, method, args) ->
+      "proceed".equals(method.getName()) ? result :
+      "getMethod".equals(method.getName()) ? intercept :
+      Stubs.getDefault(method.getReturnType()));
+  }
+
+  @Benchmark
+  public Object intercept() throws Exception {
+    return this.interceptor.intercept(this.ctx);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object interceptConcurrently() throws Exception {
+    return this.interceptor.intercept(this.ctx);
+  }
+}
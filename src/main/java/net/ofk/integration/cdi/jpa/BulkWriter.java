@@ -0,0 +1,164 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Writes large amounts of entities in batches.
+ * Entities are written in the order of the source: consecutive entities of the same type make a run
+ * of statements which the persistence provider sends in JDBC batches
+ * (the batch size of the provider, e.g. hibernate.jdbc.batch_size, should match the batch size of the writer).
+ * Entities are never regrouped by type since that would break the order of foreign keys,
+ * so the source should already keep entities of the same type together where possible.
+ * After every batch the entity manager is flushed and cleared so the persistence context
+ * doesn't grow while the source is being consumed.
+ * Keys of the written entities are recorded in {@link EntityChanges} after the flush, when their identifiers are known.
+ * The next entities are pulled from the source only when the previous batch has been written,
+ * this way a slow database holds back the source.
+ * The writer should be used within a transaction.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class BulkWriter {
+  private static final Logger LOG = LoggerFactory.getLogger(BulkWriter.class);
+
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+
+  private final EntityManager em;
+
+  private final int batchSize;
+  public int getBatchSize() {return this.batchSize;}
+
+  public BulkWriter(final EntityManager em) {
+    this(em, BulkWriter.DEFAULT_BATCH_SIZE);
+  }
+
+  public BulkWriter(final EntityManager em, final int batchSize) {
+    Preconditions.checkArgument(em != null);
+    Preconditions.checkArgument(batchSize > 0);
+
+    this.em = em;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Persists all entities of the source.
+   *
+   * @param entities - entities to persist.
+   * @return number of persisted entities.
+   */
+  public long persist(final Iterator<?> entities) {
+    return this.write(entities, BulkWriter.Mode.PERSIST);
+  }
+
+  /**
+   * Persists all entities of the stream and closes it.
+   *
+   * @param entities - entities to persist.
+   * @return number of persisted entities.
+   */
+  public long persist(final Stream<?> entities) {
+    try (Stream<?> source = entities) {
+      return this.persist(source.iterator());
+    }
+  }
+
+  /**
+   * Merges all entities of the source.
+   *
+   * @param entities - entities to merge.
+   * @return number of merged entities.
+   */
+  public long merge(final Iterator<?> entities) {
+    return this.write(entities, BulkWriter.Mode.MERGE);
+  }
+
+  /**
+   * Merges all entities of the stream and closes it.
+   *
+   * @param entities - entities to merge.
+   * @return number of merged entities.
+   */
+  public long merge(final Stream<?> entities) {
+    try (Stream<?> source = entities) {
+      return this.merge(source.iterator());
+    }
+  }
+
+  long write(final Iterator<?> entities, final BulkWriter.Mode mode) {
+    // The delegating entity manager looks up the thread's entity manager on every call,
+    // so the underlying instance is resolved once for the whole source.
+    EntityManager target = this.em.unwrap(EntityManager.class);
+
+    List<Object> batch = Lists.newArrayListWithCapacity(this.batchSize);
+    long total = 0;
+
+    while (entities.hasNext()) {
+      Object entity = entities.next();
+      Preconditions.checkArgument(entity != null);
+
+      batch.add(entity);
+
+      if (batch.size() == this.batchSize) {
+        total+= this.writeBatch(target, batch, mode);
+      }
+    }
+
+    if (!batch.isEmpty()) {
+      total+= this.writeBatch(target, batch, mode);
+    }
+
+    BulkWriter.LOG.debug("Written {} entities.", total);
+
+    return total;
+  }
+
+  int writeBatch(final EntityManager target, final List<Object> batch, final BulkWriter.Mode mode) {
+    int runs = 0;
+    Class<?> type = null;
+
+    for (int i = 0; i < batch.size(); i++) {
+      Object entity = batch.get(i);
+      if (mode == BulkWriter.Mode.PERSIST) {
+        target.persist(entity);
+      } else {
+        // the managed copy is recorded since only it gets the identifier of a new entity
+        batch.set(i, target.merge(entity));
+      }
+
+      if (entity.getClass() != type) {
+        type = entity.getClass();
+        runs+= 1;
+      }
+    }
+
+    target.flush();
+
+    if (EntityChanges.isStarted()) {
+      PersistenceUnitUtil util = target.getEntityManagerFactory().getPersistenceUnitUtil();
+      batch.forEach(entity -> EntityChanges.recordEntity(entity, util));
+    }
+
+    target.clear();
+
+    int count = batch.size();
+    BulkWriter.LOG.debug("Flushed a batch of {} entities in {} runs of the same type.", count, runs);
+
+    batch.clear();
+
+    return count;
+  }
+
+  enum Mode {
+    PERSIST,
+    MERGE
+  }
+}
@@ -1,10 +1,12 @@
 package net.ofk.integration.cdi.jpa;
 
 import com.google.common.collect.Maps;
+import net.ofk.integration.cdi.jta.PendingTransaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 import javax.persistence.FlushModeType;
 import javax.persistence.LockModeType;
@@ -23,6 +25,11 @@ import java.util.Map;
  * its own underlying entity manager instance.
  * This allows to use the bean in different transactions
  * since every thread has its own associated transaction.
+ * Factory-level operations (the criteria builder, the metamodel and the factory itself)
+ * are answered by the cached entity manager factory without creating an entity manager,
+ * the factory is pinned in the store (not evicted) until the delegating entity manager is closed.
+ * Keys of persisted, merged and removed entities are recorded in {@link EntityChanges}.
+ * Flushes and query executions are timed by the {@link PersistenceProfiler} when it's enabled.
  *
  * @author Konstantin I. key.offecka@runbox.com
  */
@@ -35,38 +42,113 @@ public class DelegatingEntityManager implements EntityManager {
   private final String puName;
   public String getPUName() {return this.puName;}
 
+  /**
+   * Printable name of the persistence unit, computed once not to produce garbage on every call.
+   */
+  private final String puDisplayName;
+
   private final EntityManagerFactoryStore store;
+  EntityManagerFactoryStore getStore() {return this.store;}
+
+  /**
+   * True if the factory of the persistence unit has been handed out and is pinned in the store, guarded by the map of entity managers.
+   */
+  private boolean pinned;
 
   public DelegatingEntityManager(final String puName, final EntityManagerFactoryStore store) {
     this.puName = puName;
+    this.puDisplayName = EntityManagerFactoryStore.getPUName(puName);
     this.store = store;
   }
 
   /**
    * If there is an underlying bean associated with the current thread that bean is returned,
    * otherwise a new entity manager is created and registered within the thread.
+   * A deferred transaction of the thread is started before.
    *
    * @return underlying entity manager instance.
    */
   EntityManager getEM() {
     EntityManager em = null;
 
+    PendingTransaction.start();
+
     synchronized(this.getEMS()) {
       Thread thread = this.getCurrentThread();
       em = this.getEMS().get(thread);
       if (em == null) {
-        DelegatingEntityManager.LOG.debug("Acquiring a new entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(this.puName));
+        DelegatingEntityManager.LOG.debug("Acquiring a new entity manager of the {} persistence unit.", this.puDisplayName);
 
         em = this.store.acquire(this.puName, thread);
         this.getEMS().put(thread, em);
-      } else {
-        DelegatingEntityManager.LOG.debug("Found an entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(this.puName));
+      } else if (DelegatingEntityManager.LOG.isDebugEnabled()) {
+        DelegatingEntityManager.LOG.debug("Found an entity manager of the {} persistence unit.", this.puDisplayName);
       }
     }
 
     return em;
   }
 
+  /**
+   * @return underlying entity manager associated with the current thread or null if the thread hasn't used one yet.
+   */
+  EntityManager findEM() {
+    synchronized(this.getEMS()) {
+      return this.getEMS().get(this.getCurrentThread());
+    }
+  }
+
+  /**
+   * @return entity manager factory of the persistence unit.
+   */
+  EntityManagerFactory getEMF() {
+    return this.store.getEMF(this.puName);
+  }
+
+  /**
+   * Returns the entity manager factory of the persistence unit which stays cached until this entity manager is closed,
+   * since callers may keep the factory or objects it has created.
+   *
+   * @return entity manager factory of the persistence unit.
+   */
+  EntityManagerFactory getPinnedEMF() {
+    EntityManagerFactory emf = null;
+
+    synchronized(this.getEMS()) {
+      if (this.pinned) {
+        emf = this.getEMF();
+      } else {
+        emf = this.store.pin(this.puName);
+        this.pinned = true;
+      }
+    }
+
+    return emf;
+  }
+
+  /**
+   * @return true if this entity manager holds neither an underlying entity manager nor a pinned factory.
+   */
+  boolean isIdle() {
+    synchronized(this.getEMS()) {
+      return this.getEMS().isEmpty() && !this.pinned;
+    }
+  }
+
+  /**
+   * Records the key of the changed entity if changes are collected in the current thread.
+   * The identifier is taken by the factory of the underlying entity manager which can't be evicted while it's in use,
+   * identifiers which are generated on flush are resolved after the commit.
+   *
+   * @param em - underlying entity manager which has changed the entity.
+   * @param entity - changed entity.
+   */
+  void recordChange(final EntityManager em, final Object entity) {
+    if (entity != null && EntityChanges.isStarted()) {
+      EntityChanges.recordEntity(entity, em.getEntityManagerFactory().getPersistenceUnitUtil());
+    }
+  }
+
   Thread getCurrentThread() {
     return Thread.currentThread();
   }
@@ -77,27 +159,39 @@ public class DelegatingEntityManager implements EntityManager {
    */
   @Override
   public void close() {
-    synchronized (this.getEMS()) {
+    synchronized(this.getEMS()) {
       this.getEMS().forEach((thread, em) -> this.store.release(this.puName, thread));
       this.getEMS().clear();
 
-      DelegatingEntityManager.LOG.debug("Closed the delegating entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(this.puName));
+      if (this.pinned) {
+        this.store.unpin(this.puName);
+        this.pinned = false;
+      }
+
+      DelegatingEntityManager.LOG.debug("Closed the delegating entity manager of the {} persistence unit.", this.puDisplayName);
     }
   }
 
   @Override
   public void persist(final Object entity) {
-    this.getEM().persist(entity);
+    EntityManager em = this.getEM();
+    em.persist(entity);
+    this.recordChange(em, entity);
   }
 
   @Override
   public <T> T merge(final T entity) {
-    return this.getEM().merge(entity);
+    EntityManager em = this.getEM();
+    T result = em.merge(entity);
+    this.recordChange(em, result);
+    return result;
   }
 
   @Override
   public void remove(final Object entity) {
-    this.getEM().remove(entity);
+    EntityManager em = this.getEM();
+    this.recordChange(em, entity);
+    em.remove(entity);
   }
 
   @Override
@@ -125,9 +219,22 @@ public class DelegatingEntityManager implements EntityManager {
     return this.getEM().getReference(entityClass, primaryKey);
   }
 
+  /**
+   * Flushes the underlying entity manager unless it's in the read-only mode.
+   */
   @Override
   public void flush() {
-    this.getEM().flush();
+    if (this.store.isReadOnly(this.getCurrentThread())) {
+      DelegatingEntityManager.LOG.debug("Skipped flushing the read-only entity manager of the {} persistence unit.", this.puDisplayName);
+    } else {
+      PersistenceProfiler profiler = PersistenceProfiler.getInstance();
+      long start = profiler.start();
+      try {
+        this.getEM().flush();
+      } finally {
+        profiler.record(PersistenceProfiler.FLUSH, this.getPUName(), start);
+      }
+    }
   }
 
   @Override
@@ -202,42 +309,42 @@ public class DelegatingEntityManager implements EntityManager {
 
   @Override
   public Query createQuery(final String qlString) {
-    return this.getEM().createQuery(qlString);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createQuery(qlString), Query.class, this.getPUName());
   }
 
   @Override
   public <T> TypedQuery<T> createQuery(final CriteriaQuery<T> criteriaQuery) {
-    return this.getEM().createQuery(criteriaQuery);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createQuery(criteriaQuery), TypedQuery.class, this.getPUName());
   }
 
   @Override
   public <T> TypedQuery<T> createQuery(final String qlString, final Class<T> resultClass) {
-    return this.getEM().createQuery(qlString, resultClass);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createQuery(qlString, resultClass), TypedQuery.class, this.getPUName());
   }
 
   @Override
   public Query createNamedQuery(final String name) {
-    return this.getEM().createNamedQuery(name);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createNamedQuery(name), Query.class, this.getPUName());
   }
 
   @Override
   public <T> TypedQuery<T> createNamedQuery(final String name, final Class<T> resultClass) {
-    return this.getEM().createNamedQuery(name, resultClass);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createNamedQuery(name, resultClass), TypedQuery.class, this.getPUName());
   }
 
   @Override
   public Query createNativeQuery(final String sqlString) {
-    return this.getEM().createNativeQuery(sqlString);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createNativeQuery(sqlString), Query.class, this.getPUName());
   }
 
   @Override
   public Query createNativeQuery(final String sqlString, final Class resultClass) {
-    return this.getEM().createNativeQuery(sqlString, resultClass);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createNativeQuery(sqlString, resultClass), Query.class, this.getPUName());
   }
 
   @Override
   public Query createNativeQuery(final String sqlString, final String resultSetMapping) {
-    return this.getEM().createNativeQuery(sqlString, resultSetMapping);
+    return PersistenceProfiler.getInstance().profile(this.getEM().createNativeQuery(sqlString, resultSetMapping), Query.class, this.getPUName());
   }
 
   @Override
@@ -257,7 +364,8 @@ public class DelegatingEntityManager implements EntityManager {
 
   @Override
   public boolean isOpen() {
-    return this.getEM().isOpen();
+    EntityManager em = this.findEM();
+    return em == null || em.isOpen();
   }
 
   @Override
@@ -266,17 +374,17 @@ public class DelegatingEntityManager implements EntityManager {
   }
 
   @Override
-  public javax.persistence.EntityManagerFactory getEntityManagerFactory() {
-    return this.getEM().getEntityManagerFactory();
+  public EntityManagerFactory getEntityManagerFactory() {
+    return this.getPinnedEMF();
   }
 
   @Override
   public CriteriaBuilder getCriteriaBuilder() {
-    return this.getEM().getCriteriaBuilder();
+    return this.getPinnedEMF().getCriteriaBuilder();
   }
 
   @Override
   public Metamodel getMetamodel() {
-    return this.getEM().getMetamodel();
+    return this.getPinnedEMF().getMetamodel();
   }
 }
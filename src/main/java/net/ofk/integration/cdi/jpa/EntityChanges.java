@@ -0,0 +1,129 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.Entity;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects keys of the entities changed in the transaction of the current thread,
+ * so caches of other nodes can be invalidated after the transaction is committed.
+ * Delegating entity managers record entities they persist, merge and remove,
+ * changes done by dirty checking of managed entities or by bulk updates should be recorded explicitly.
+ * Keys are collected only between {@link #start()} and {@link #take()} or {@link #discard()}.
+ * Identifiers generated by the database are unknown until the entity is flushed,
+ * such entities are kept and their keys are resolved when the keys are taken after the commit.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public final class EntityChanges {
+  private static final Logger LOG = LoggerFactory.getLogger(EntityChanges.class);
+
+  private static final ThreadLocal<Set<EntityKey>> KEYS = new ThreadLocal<>();
+  /**
+   * Entities which had no identifier when they were recorded with the utilities to get it later.
+   */
+  private static final ThreadLocal<Map<Object, PersistenceUnitUtil>> UNRESOLVED = new ThreadLocal<>();
+
+  private EntityChanges() {
+  }
+
+  /**
+   * Starts collecting keys in the current thread, the set is allocated on the first change.
+   */
+  public static void start() {
+    EntityChanges.KEYS.set(Collections.emptySet());
+  }
+
+  /**
+   * @return true if keys are collected in the current thread.
+   */
+  public static boolean isStarted() {
+    return EntityChanges.KEYS.get() != null;
+  }
+
+  /**
+   * Records a changed entity if keys are collected in the current thread.
+   *
+   * @param entityClass - class of the entity or of its proxy.
+   * @param id - identifier of the entity, null identifiers are ignored with a warning.
+   */
+  public static void record(final Class<?> entityClass, final Object id) {
+    Set<EntityKey> keys = EntityChanges.KEYS.get();
+    if (keys != null && id == null) {
+      EntityChanges.LOG.warn("Changed {} entity has no identifier, caches of other nodes may keep it.", EntityChanges.getEntityName(entityClass));
+    } else if (keys != null) {
+      if (keys.isEmpty()) {
+        keys = Sets.newHashSet();
+        EntityChanges.KEYS.set(keys);
+      }
+      keys.add(new EntityKey(EntityChanges.getEntityName(entityClass), id));
+    }
+  }
+
+  /**
+   * Records a changed entity if keys are collected in the current thread.
+   * If the entity has no identifier yet (e.g. it's generated by the database when the entity is flushed)
+   * its key is resolved when keys are taken.
+   *
+   * @param entity - changed entity.
+   * @param util - utilities of the persistence unit of the entity.
+   */
+  public static void recordEntity(final Object entity, final PersistenceUnitUtil util) {
+    if (EntityChanges.KEYS.get() != null) {
+      Object id = util.getIdentifier(entity);
+      if (id == null) {
+        Map<Object, PersistenceUnitUtil> unresolved = EntityChanges.UNRESOLVED.get();
+        if (unresolved == null) {
+          unresolved = Maps.newIdentityHashMap();
+          EntityChanges.UNRESOLVED.set(unresolved);
+        }
+        unresolved.put(entity, util);
+      } else {
+        EntityChanges.record(entity.getClass(), id);
+      }
+    }
+  }
+
+  /**
+   * Stops collecting keys in the current thread.
+   * Should be called after the commit, so identifiers of the recorded entities have been generated.
+   *
+   * @return keys collected since the start.
+   */
+  public static Set<EntityKey> take() {
+    Map<Object, PersistenceUnitUtil> unresolved = EntityChanges.UNRESOLVED.get();
+    if (unresolved != null) {
+      unresolved.forEach((entity, util) -> EntityChanges.record(entity.getClass(), util.getIdentifier(entity)));
+    }
+
+    Set<EntityKey> keys = EntityChanges.KEYS.get();
+    EntityChanges.discard();
+    return keys == null ? Collections.emptySet() : keys;
+  }
+
+  /**
+   * Stops collecting keys in the current thread and forgets the collected ones.
+   */
+  public static void discard() {
+    EntityChanges.KEYS.remove();
+    EntityChanges.UNRESOLVED.remove();
+  }
+
+  /**
+   * Returns the name of the entity class skipping proxy classes generated by the persistence provider.
+   */
+  static String getEntityName(final Class<?> entityClass) {
+    Class<?> cls = entityClass;
+    while (cls != null && !cls.isAnnotationPresent(Entity.class)) {
+      cls = cls.getSuperclass();
+    }
+    return (cls == null ? entityClass : cls).getName();
+  }
+}
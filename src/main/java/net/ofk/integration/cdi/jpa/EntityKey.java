@@ -0,0 +1,51 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Identifies an entity across nodes by the name of its entity class and its identifier.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public final class EntityKey implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String entityName;
+  public String getEntityName() {return this.entityName;}
+
+  private final Object id;
+  public Object getId() {return this.id;}
+
+  public EntityKey(final String entityName, final Object id) {
+    Preconditions.checkArgument(entityName != null && id != null);
+
+    this.entityName = entityName;
+    this.id = id;
+  }
+
+  @Override
+  public boolean equals(final Object object) {
+    boolean result = false;
+
+    if (object != null && object.getClass() == this.getClass()) {
+      EntityKey key = (EntityKey) object;
+
+      result = this.getEntityName().equals(key.getEntityName()) && this.getId().equals(key.getId());
+    }
+
+    return result;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.getEntityName(), this.getId());
+  }
+
+  @Override
+  public String toString() {
+    return this.getEntityName() + '#' + this.getId();
+  }
+}
@@ -2,16 +2,27 @@ package net.ofk.integration.cdi.jpa;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import net.ofk.integration.cdi.jta.TransactionResources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
 import javax.persistence.Persistence;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Stores instances of entity managers.
@@ -20,22 +31,80 @@ import java.util.Map;
  * and with the thread in which the new instance was acquired.
  * This associations allow to re-use an instance if it's called within the same thread
  * and uses the same persistence unit.
+ * The number of cached entity manager factories can be bounded and idle factories can be evicted,
+ * the least recently used factories are evicted first and only when no entity manager of theirs is registered
+ * and they are not pinned by a caller which holds them, acquiring and releasing an entity manager refreshes
+ * the access time of its factory, so with many persistence units (e.g. one per tenant) only the active ones
+ * keep their connection pools.
+ * Locks are always taken in the same order: the context map first, then the factory map.
  *
  * @author Konstantin I. key.offecka@runbox.com
  */
 @Named
 @ApplicationScoped
-public class EntityManagerFactoryStore {
+public class EntityManagerFactoryStore implements TransactionResources {
   private static final Logger LOG = LoggerFactory.getLogger(EntityManagerFactoryStore.class);
 
   private static final String DEFAULT_PU_NAME = "default";
 
-  private final Map<String, EntityManagerFactory> emfs = Maps.newHashMap();
+  private final Map<String, EntityManagerFactory> emfs = new LinkedHashMap<>(16, 0.75f, true);
   Map<String, EntityManagerFactory> getEMFs() {return this.emfs;}
 
+  private final Map<String, Long> accessTimes = Maps.newHashMap();
+  Map<String, Long> getAccessTimes() {return this.accessTimes;}
+
+  /**
+   * Numbers of the handed out factories per persistence unit, guarded by the factory map.
+   */
+  private final Map<String, Integer> pins = Maps.newHashMap();
+  Map<String, Integer> getPins() {return this.pins;}
+
+  private volatile int maxFactories;
+  public int getMaxFactories() {return this.maxFactories;}
+  /**
+   * Sets how many entity manager factories may be cached, zero means no limit.
+   */
+  public void setMaxFactories(final int maxFactories) {this.maxFactories = maxFactories;}
+
+  private volatile long idleTimeout;
+  public long getIdleTimeout() {return this.idleTimeout;}
+  /**
+   * Sets how many milliseconds an unused entity manager factory is cached, zero means forever.
+   */
+  public void setIdleTimeout(final long idleTimeout) {this.idleTimeout = idleTimeout;}
+
+  private volatile boolean evictionNeeded;
+
   private final Map<String, Map<Thread, EntityManagerFactoryStore.Context>> contextMap = Maps.newHashMap();
   Map<String, Map<Thread, EntityManagerFactoryStore.Context>> getContextMap() {return this.contextMap;}
 
+  /**
+   * Threads in the read-only mode, guarded by the context map, used to switch the entity managers they acquire.
+   */
+  private final Set<Thread> readOnlyThreads = Sets.newHashSet();
+  Set<Thread> getReadOnlyThreads() {return this.readOnlyThreads;}
+
+  /**
+   * Read-only mode of the current thread, so checking it on every intercepted call and flush takes no lock.
+   */
+  private final ThreadLocal<Boolean> readOnly = new ThreadLocal<>();
+
+  /**
+   * Registers the persistence profiler over JMX, it stays disabled until it's enabled there.
+   */
+  @PostConstruct
+  public void registerProfiler() {
+    PersistenceProfiler.getInstance().register();
+  }
+
+  /**
+   * Unregisters the persistence profiler, so the MBean server doesn't keep the class loader of an undeployed application.
+   */
+  @PreDestroy
+  public void unregisterProfiler() {
+    PersistenceProfiler.getInstance().unregister();
+  }
+
   /**
    * Returns a printable name of the persistence unit.
    * Printable name is the trimmed name of the persistence unit.
@@ -59,20 +128,155 @@ public class EntityManagerFactoryStore {
    */
   EntityManagerFactory getEMF(final String puName) {
     EntityManagerFactory emf = null;
+    boolean created = false;
 
     synchronized (this.getEMFs()) {
       emf = this.getEMFs().get(puName);
       if (emf == null) {
         emf = this.createEMF(puName);
         this.getEMFs().put(puName, emf);
+        created = true;
 
         EntityManagerFactoryStore.LOG.debug("Created a new entity manager factory of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
       }
+      if (this.idleTimeout > 0) {
+        this.getAccessTimes().put(puName, this.currentTime());
+      }
+    }
+
+    if (created) {
+      this.evictionNeeded = true;
+    }
+    if (!Thread.holdsLock(this.getContextMap())) {
+      this.evictIfNeeded(puName);
     }
 
     return emf;
   }
 
+  /**
+   * Returns the factory of the persistence unit and keeps it cached until it's unpinned as many times as it was pinned.
+   * Should be used for factories (and their criteria builders and metamodels) handed out to callers
+   * which may use them any time later.
+   *
+   * @param puName - name of the persistence unit.
+   * @return entity manager factory.
+   */
+  EntityManagerFactory pin(final String puName) {
+    synchronized (this.getEMFs()) {
+      this.getPins().merge(puName, 1, Integer::sum);
+    }
+    return this.getEMF(puName);
+  }
+
+  /**
+   * Lets the factory of the persistence unit be evicted again once it's not pinned any more.
+   *
+   * @param puName - name of the persistence unit.
+   */
+  void unpin(final String puName) {
+    boolean unpinned = false;
+
+    synchronized (this.getEMFs()) {
+      Integer count = this.getPins().get(puName);
+      if (count == null) {
+        EntityManagerFactoryStore.LOG.warn("Entity manager factory of the {} persistence unit was not pinned.", EntityManagerFactoryStore.getPUName(puName));
+      } else if (count == 1) {
+        this.getPins().remove(puName);
+        unpinned = true;
+      } else {
+        this.getPins().put(puName, count - 1);
+      }
+    }
+    this.touch(puName);
+
+    if (unpinned) {
+      this.evict();
+    }
+  }
+
+  /**
+   * Marks the cached factory of the persistence unit as the most recently used one and refreshes its access time.
+   * Does nothing if factories are never evicted.
+   */
+  void touch(final String puName) {
+    if (this.maxFactories > 0 || this.idleTimeout > 0) {
+      synchronized (this.getEMFs()) {
+        if (this.getEMFs().get(puName) != null && this.idleTimeout > 0) {
+          this.getAccessTimes().put(puName, this.currentTime());
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes and removes the cached entity manager factories which exceed the maximal number of factories
+   * or haven't been used longer than the idle timeout.
+   * Factories with registered entity managers and pinned factories are never evicted.
+   * Eviction is done when a new factory is created and when an entity manager is released,
+   * it may also be called periodically to evict idle factories when the store isn't used.
+   */
+  public void evict() {
+    this.evict(null);
+  }
+
+  /**
+   * Evicts factories if a new one has been created since the last eviction.
+   * Should be called without holding the locks of the store, so evicted factories are not closed under them.
+   */
+  void evictIfNeeded(final String keptPUName) {
+    if (this.evictionNeeded) {
+      this.evictionNeeded = false;
+      this.evict(keptPUName);
+    }
+  }
+
+  /**
+   * @param keptPUName - persistence unit which factory should not be evicted since it's being returned.
+   */
+  void evict(final String keptPUName) {
+    if (this.maxFactories > 0 || this.idleTimeout > 0) {
+      List<EntityManagerFactory> evicted = Lists.newArrayList();
+
+      synchronized (this.getContextMap()) {
+        synchronized (this.getEMFs()) {
+          long now = this.currentTime();
+          int excess = this.maxFactories > 0 ? this.getEMFs().size() - this.maxFactories : 0;
+
+          Iterator<Map.Entry<String, EntityManagerFactory>> entries = this.getEMFs().entrySet().iterator();
+          while (entries.hasNext()) {
+            Map.Entry<String, EntityManagerFactory> entry = entries.next();
+            String puName = entry.getKey();
+
+            Long accessTime = this.getAccessTimes().get(puName);
+            boolean idle = this.idleTimeout > 0 && accessTime != null && now - accessTime >= this.idleTimeout;
+            if ((excess > 0 || idle) && !Objects.equals(puName, keptPUName)
+              && !this.getContextMap().containsKey(puName) && !this.getPins().containsKey(puName)) {
+              entries.remove();
+              this.getAccessTimes().remove(puName);
+              evicted.add(entry.getValue());
+              excess-= 1;
+
+              EntityManagerFactoryStore.LOG.debug("Evicted the entity manager factory of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
+            }
+          }
+        }
+      }
+
+      for (EntityManagerFactory emf : evicted) {
+        try {
+          emf.close();
+        } catch (final RuntimeException ex) {
+          EntityManagerFactoryStore.LOG.error("Failed to close the evicted entity manager factory, the cause error follows.", ex);
+        }
+      }
+    }
+  }
+
+  long currentTime() {
+    return System.currentTimeMillis();
+  }
+
   /**
    * Creates an entity manager factory.
    * Needed fo testing.
@@ -109,6 +313,9 @@ public class EntityManagerFactoryStore {
         em = emf.createEntityManager();
 
         context = new EntityManagerFactoryStore.Context(em);
+        if (this.getReadOnlyThreads().contains(thread)) {
+          context.enterReadOnly();
+        }
         contexts.put(thread, context);
 
         EntityManagerFactoryStore.LOG.debug("Registered the new entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
@@ -116,11 +323,16 @@ public class EntityManagerFactoryStore {
         context.inc();
 
         em = context.getEM();
+        this.touch(puName);
 
-        EntityManagerFactoryStore.LOG.debug("Found the registered entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
+        if (EntityManagerFactoryStore.LOG.isDebugEnabled()) {
+          EntityManagerFactoryStore.LOG.debug("Found the registered entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
+        }
       }
     }
 
+    this.evictIfNeeded(puName);
+
     return em;
   }
 
@@ -132,6 +344,8 @@ public class EntityManagerFactoryStore {
    * @param thread - thread associated with the entity manager.
    */
   public void release(final String puName, final Thread thread) {
+    boolean unreferenced = false;
+
     synchronized (this.getContextMap()) {
       Map<Thread, EntityManagerFactoryStore.Context> contexts = this.getContextMap().get(puName);
       if (contexts == null) {
@@ -149,14 +363,131 @@ public class EntityManagerFactoryStore {
 
             if (contexts.isEmpty()) {
               this.getContextMap().remove(puName);
+              unreferenced = true;
             }
             EntityManagerFactoryStore.LOG.debug("Released the entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
-          } else {
+          } else if (EntityManagerFactoryStore.LOG.isDebugEnabled()) {
             EntityManagerFactoryStore.LOG.debug("Didn't release the entity manager, there are other references to the entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
           }
         }
       }
     }
+
+    this.touch(puName);
+
+    if (unreferenced) {
+      this.evict();
+    }
+  }
+
+  /**
+   * Clears all entity managers associated with the given thread
+   * so all their managed entities become detached.
+   * Should be called after a transaction used by the thread is rolled back.
+   *
+   * @param thread - thread associated with the entity managers.
+   */
+  @Override
+  public void clear(final Thread thread) {
+    synchronized (this.getContextMap()) {
+      this.getContextMap().forEach((puName, contexts) -> {
+        EntityManagerFactoryStore.Context context = contexts.get(thread);
+        if (context != null) {
+          context.getEM().clear();
+
+          EntityManagerFactoryStore.LOG.debug("Cleared the entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
+        }
+      });
+    }
+  }
+
+  /**
+   * Joins all entity managers associated with the given thread to the transaction of the thread.
+   * Should be called after a transaction is started for entity managers which had been created before.
+   *
+   * @param thread - thread associated with the entity managers.
+   */
+  @Override
+  public void joinTransaction(final Thread thread) {
+    synchronized (this.getContextMap()) {
+      this.getContextMap().forEach((puName, contexts) -> {
+        EntityManagerFactoryStore.Context context = contexts.get(thread);
+        if (context != null) {
+          context.getEM().joinTransaction();
+
+          EntityManagerFactoryStore.LOG.debug("Joined the entity manager of the {} persistence unit to the transaction.", EntityManagerFactoryStore.getPUName(puName));
+        }
+      });
+    }
+  }
+
+  /**
+   * Switches entity managers associated with the given thread into or out of the read-only mode.
+   * In the read-only mode entity managers use the commit flush mode
+   * and delegating entity managers skip explicit flushes,
+   * when they leave the mode the flush mode they had before is restored.
+   * Entity managers acquired by the thread later follow the mode too.
+   *
+   * @param thread - thread associated with the entity managers.
+   * @param readOnly - true to switch the entity managers into the read-only mode.
+   */
+  @Override
+  public void setReadOnly(final Thread thread, final boolean readOnly) {
+    if (thread == Thread.currentThread() && readOnly) {
+      this.readOnly.set(Boolean.TRUE);
+    } else if (thread == Thread.currentThread()) {
+      this.readOnly.remove();
+    }
+
+    synchronized (this.getContextMap()) {
+      boolean changed = readOnly ? this.getReadOnlyThreads().add(thread) : this.getReadOnlyThreads().remove(thread);
+      if (changed) {
+        this.getContextMap().values().forEach(contexts -> {
+          EntityManagerFactoryStore.Context context = contexts.get(thread);
+          if (context != null && readOnly) {
+            context.enterReadOnly();
+          } else if (context != null) {
+            context.leaveReadOnly();
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Tells whether the thread is in the read-only mode, the current thread is checked without any lock.
+   *
+   * @param thread - thread associated with the entity managers.
+   * @return true if entity managers of the thread are in the read-only mode.
+   */
+  @Override
+  public boolean isReadOnly(final Thread thread) {
+    if (thread == Thread.currentThread()) {
+      return this.readOnly.get() != null;
+    }
+
+    synchronized (this.getContextMap()) {
+      return this.getReadOnlyThreads().contains(thread);
+    }
+  }
+
+  /**
+   * Starts a unit of work, so entity managers produced for the {@link UnitOfWorkPersistenceContext}
+   * are released when it ends.
+   */
+  @Override
+  public void beginUnitOfWork() {
+    UnitOfWorkContext.begin();
+  }
+
+  /**
+   * Ends the unit of work releasing its entity managers,
+   * entity managers of the thread acquired otherwise are cleared so they don't keep detached entities.
+   */
+  @Override
+  public void endUnitOfWork() {
+    UnitOfWorkContext.end();
+    this.clear(Thread.currentThread());
   }
 
   /**
@@ -181,6 +512,22 @@ public class EntityManagerFactoryStore {
       this.count = count;
     }
 
+    /**
+     * Flush mode of the entity manager before it entered the read-only mode.
+     */
+    private FlushModeType flushMode;
+    public FlushModeType getFlushMode() {return this.flushMode;}
+
+    public void enterReadOnly() {
+      this.flushMode = this.getEM().getFlushMode();
+      this.getEM().setFlushMode(FlushModeType.COMMIT);
+    }
+
+    public void leaveReadOnly() {
+      this.getEM().setFlushMode(this.flushMode == null ? FlushModeType.AUTO : this.flushMode);
+      this.flushMode = null;
+    }
+
     public void inc() {
       this.count+= 1;
     }
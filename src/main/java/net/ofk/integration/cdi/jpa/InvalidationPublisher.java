@@ -0,0 +1,190 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Named;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Publishes keys of the entities changed by committed transactions through the invalidation transport.
+ * Keys are not sent right away: a worker waits for the coalescing interval after the first key,
+ * so a burst of transactions changing the same entities results in a few messages with distinct keys,
+ * messages contain no more keys than the maximal batch size.
+ * The number of pending keys is bounded by the capacity, publishers wait while it's reached.
+ * The loopback transport is used by default.
+ * Settings are effective only if they are changed before the first key is published,
+ * keys published after the publisher has been stopped are dropped.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Named
+@ApplicationScoped
+public class InvalidationPublisher {
+  private static final Logger LOG = LoggerFactory.getLogger(InvalidationPublisher.class);
+
+  private InvalidationTransport transport = new LoopbackTransport();
+  public InvalidationTransport getTransport() {return this.transport;}
+  public void setTransport(final InvalidationTransport transport) {this.transport = transport;}
+
+  private long coalesceInterval = 50;
+  public long getCoalesceInterval() {return this.coalesceInterval;}
+  public void setCoalesceInterval(final long coalesceInterval) {this.coalesceInterval = coalesceInterval;}
+
+  private int maxBatchSize = 1000;
+  public int getMaxBatchSize() {return this.maxBatchSize;}
+  public void setMaxBatchSize(final int maxBatchSize) {this.maxBatchSize = maxBatchSize;}
+
+  private int capacity = 100000;
+  public int getCapacity() {return this.capacity;}
+  public void setCapacity(final int capacity) {this.capacity = capacity;}
+
+  private final Set<EntityKey> pending = Sets.newLinkedHashSet();
+  Set<EntityKey> getPending() {return this.pending;}
+
+  private Thread worker;
+  private boolean stopped;
+
+  /**
+   * Registers a listener of the keys changed on any node, e.g. a cache which should evict them.
+   *
+   * @param listener - listener of the changed keys.
+   */
+  public void subscribe(final Consumer<Set<EntityKey>> listener) {
+    this.getTransport().subscribe(listener);
+  }
+
+  /**
+   * Queues keys of the entities changed by a committed transaction.
+   * Waits while the number of pending keys reaches the capacity,
+   * drops the keys with a warning if the publisher is stopped or the thread is interrupted meanwhile.
+   *
+   * @param keys - keys of the changed entities.
+   */
+  public void publish(final Set<EntityKey> keys) {
+    if (!keys.isEmpty()) {
+      synchronized (this.getPending()) {
+        try {
+          while (!this.stopped && this.getPending().size() >= this.capacity) {
+            this.getPending().wait();
+          }
+
+          if (this.stopped) {
+            InvalidationPublisher.LOG.warn("Invalidation publisher has been stopped, {} invalidated keys are dropped.", keys.size());
+          } else {
+            this.start();
+
+            this.getPending().addAll(keys);
+            this.getPending().notifyAll();
+          }
+        } catch (final InterruptedException ex) {
+          Thread.currentThread().interrupt();
+
+          InvalidationPublisher.LOG.warn("Interrupted while waiting for the invalidation publisher, {} invalidated keys are dropped.", keys.size());
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts the worker unless it's started already, should be called under the lock of the pending keys.
+   */
+  void start() {
+    if (this.worker == null) {
+      Preconditions.checkState(this.coalesceInterval >= 0 && this.maxBatchSize > 0 && this.capacity > 0);
+
+      this.worker = new Thread(this::work, "invalidation-publisher");
+      this.worker.setDaemon(true);
+      this.worker.start();
+
+      InvalidationPublisher.LOG.debug("Started the invalidation publisher.");
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    Thread thread = null;
+    synchronized (this.getPending()) {
+      thread = this.worker;
+      this.worker = null;
+      this.stopped = true;
+      this.getPending().notifyAll();
+    }
+
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    Set<EntityKey> batch = this.next();
+    while (!batch.isEmpty()) {
+      this.send(batch);
+      batch = this.next();
+    }
+
+    InvalidationPublisher.LOG.debug("Stopped the invalidation publisher.");
+  }
+
+  void work() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        synchronized (this.getPending()) {
+          while (this.getPending().isEmpty()) {
+            this.getPending().wait();
+          }
+        }
+
+        Thread.sleep(this.coalesceInterval);
+
+        Set<EntityKey> batch = this.next();
+        while (!batch.isEmpty()) {
+          this.send(batch);
+          batch = this.next();
+        }
+      }
+    } catch (final InterruptedException ex) {
+      InvalidationPublisher.LOG.debug("Invalidation publisher has been interrupted.");
+    }
+  }
+
+  /**
+   * Removes and returns up to the maximal batch size of the pending keys, wakes up waiting publishers.
+   */
+  Set<EntityKey> next() {
+    Set<EntityKey> batch = Sets.newHashSet();
+
+    synchronized (this.getPending()) {
+      Iterator<EntityKey> keys = this.getPending().iterator();
+      while (keys.hasNext() && batch.size() < this.maxBatchSize) {
+        batch.add(keys.next());
+        keys.remove();
+      }
+
+      if (!batch.isEmpty()) {
+        this.getPending().notifyAll();
+      }
+    }
+
+    return batch;
+  }
+
+  void send(final Set<EntityKey> batch) {
+    try {
+      this.getTransport().send(batch);
+
+      InvalidationPublisher.LOG.debug("Sent {} invalidated keys.", batch.size());
+    } catch (final Exception ex) {
+      InvalidationPublisher.LOG.error("Failed to send invalidated keys, caches of other nodes may be stale, the cause error follows.", ex);
+    }
+  }
+}
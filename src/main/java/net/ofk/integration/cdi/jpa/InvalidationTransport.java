@@ -0,0 +1,25 @@
+package net.ofk.integration.cdi.jpa;
+
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Delivers keys of changed entities to all nodes, including the sending one.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public interface InvalidationTransport {
+  /**
+   * Sends a batch of keys.
+   *
+   * @param keys - keys of changed entities.
+   */
+  void send(Set<EntityKey> keys) throws Exception;
+
+  /**
+   * Registers a listener which receives batches of keys sent by any node.
+   *
+   * @param listener - listener of the batches.
+   */
+  void subscribe(Consumer<Set<EntityKey>> listener);
+}
@@ -0,0 +1,25 @@
+package net.ofk.integration.cdi.jpa;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Delivers batches of keys to the listeners of the same process, useful for a single node and for tests.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class LoopbackTransport implements InvalidationTransport {
+  private final List<Consumer<Set<EntityKey>>> listeners = new CopyOnWriteArrayList<>();
+
+  @Override
+  public void send(final Set<EntityKey> keys) {
+    this.listeners.forEach(listener -> listener.accept(keys));
+  }
+
+  @Override
+  public void subscribe(final Consumer<Set<EntityKey>> listener) {
+    this.listeners.add(listener);
+  }
+}
@@ -0,0 +1,55 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Publishes events through the outbox: an event is persisted by the given entity manager
+ * in the current transaction and is relayed to the outbox handler only if the transaction is committed,
+ * so the transaction doesn't wait for the event delivery.
+ * The transaction interceptor wakes the outbox relay up after the commit of the transaction which published events.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public final class Outbox {
+  private static final ThreadLocal<Boolean> PUBLISHED = new ThreadLocal<>();
+
+  private Outbox() {
+  }
+
+  /**
+   * Persists an event in the current transaction.
+   * The event is persisted by the underlying entity manager, so a delegating entity manager
+   * doesn't record it as a changed entity and caches of other nodes aren't invalidated by outbox rows.
+   *
+   * @param em - entity manager of the persistence unit of the outbox.
+   * @param type - type of the event.
+   * @param payload - serialized event.
+   * @return persisted event.
+   */
+  public static OutboxEvent publish(final EntityManager em, final String type, final String payload) {
+    OutboxEvent event = new OutboxEvent(type, payload);
+    em.unwrap(EntityManager.class).persist(event);
+
+    Outbox.PUBLISHED.set(Boolean.TRUE);
+
+    return event;
+  }
+
+  /**
+   * Forgets whether events have been published in the current thread.
+   *
+   * @return true if any event has been published since the last call.
+   */
+  public static boolean take() {
+    boolean result = Outbox.PUBLISHED.get() != null;
+    Outbox.PUBLISHED.remove();
+    return result;
+  }
+
+  /**
+   * Forgets events published in the current thread, should be called when the transaction is rolled back.
+   */
+  public static void discard() {
+    Outbox.PUBLISHED.remove();
+  }
+}
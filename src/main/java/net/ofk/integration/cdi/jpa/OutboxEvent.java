@@ -0,0 +1,61 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+
+/**
+ * Event stored in the outbox table in the transaction which produced it,
+ * the outbox relay hands it over to the outbox handler after the transaction is committed.
+ * The class should be listed in the persistence unit of the outbox.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Entity
+@Table(name = "outbox_event")
+public class OutboxEvent {
+  @Id
+  @GeneratedValue
+  private Long id;
+  public Long getId() {return this.id;}
+
+  @Column(name = "type", nullable = false)
+  private String type;
+  public String getType() {return this.type;}
+
+  @Lob
+  @Column(name = "payload", nullable = false)
+  private String payload;
+  public String getPayload() {return this.payload;}
+
+  @Column(name = "created_at", nullable = false)
+  private long createdAt;
+  /**
+   * @return time in milliseconds when the event was created.
+   */
+  public long getCreatedAt() {return this.createdAt;}
+
+  @Column(name = "dead_letter", nullable = false)
+  private boolean deadLetter;
+  /**
+   * @return true if the outbox handler has failed to handle the event, the relay doesn't read it any more.
+   */
+  public boolean isDeadLetter() {return this.deadLetter;}
+
+  protected OutboxEvent() {
+  }
+
+  public OutboxEvent(final String type, final String payload) {
+    this.type = type;
+    this.payload = payload;
+    this.createdAt = System.currentTimeMillis();
+  }
+
+  @Override
+  public String toString() {
+    return "OutboxEvent#" + this.id + '[' + this.type + ']';
+  }
+}
@@ -0,0 +1,17 @@
+package net.ofk.integration.cdi.jpa;
+
+import java.util.List;
+
+/**
+ * Delivers events relayed from the outbox, e.g. sends them to a message broker.
+ * A batch which fails is delivered again, so the handler should tolerate duplicates.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@FunctionalInterface
+public interface OutboxHandler {
+  /**
+   * @param events - events ordered by their identifiers.
+   */
+  void handle(List<OutboxEvent> events) throws Exception;
+}
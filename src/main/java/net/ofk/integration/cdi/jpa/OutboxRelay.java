@@ -0,0 +1,377 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import net.ofk.integration.cdi.jta.TransactionGate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Relays events from the outbox to the outbox handler in background threads.
+ * A reader thread reads the oldest events in batches and queues them for handler threads,
+ * a handler thread passes a batch to the outbox handler and deletes the delivered events.
+ * The queue of batches is bounded, so when the handler is slow the reader stops reading (back-pressure).
+ * Batches are delivered in parallel if there are several handler threads, so their order is kept only with a single one.
+ * Failed batches are delivered again after the retry delay up to the maximal number of attempts,
+ * then the halves of the batch are delivered separately, so a single event which the handler can't process
+ * is isolated and marked as a dead letter: it stays in the outbox table but is never read again.
+ * The reader waits for the poll interval when the outbox is empty and is woken up earlier
+ * when a transaction which published events is committed; waking up doesn't take any lock.
+ * The relay should be started by {@link #start()} once the handler is set, events committed before are read then.
+ * Only one relay should read an outbox table, otherwise events are delivered several times.
+ * No events are read or deleted while the transaction gate is closed.
+ * Settings are effective only if they are changed before the relay is started,
+ * the relay can't be started again once it has been stopped.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Named
+@ApplicationScoped
+public class OutboxRelay {
+  private static final Logger LOG = LoggerFactory.getLogger(OutboxRelay.class);
+
+  private static final String READ_QUERY = "select e from OutboxEvent e where e.deadLetter = false order by e.id";
+  private static final String DELETE_QUERY = "delete from OutboxEvent e where e.id in :ids";
+  private static final String DEAD_LETTER_QUERY = "update OutboxEvent e set e.deadLetter = true where e.id in :ids";
+
+  @Resource(name="TransactionManager")
+  public TransactionManager tm;
+  TransactionManager getTM() {return this.tm;}
+
+  @Inject
+  public EntityManagerFactoryStore store;
+  EntityManagerFactoryStore getStore() {return this.store;}
+
+  @Inject
+  public TransactionGate gate;
+  TransactionGate getGate() {return this.gate;}
+
+  private OutboxHandler handler;
+  public OutboxHandler getHandler() {return this.handler;}
+  public void setHandler(final OutboxHandler handler) {this.handler = handler;}
+
+  private String puName;
+  public String getPUName() {return this.puName;}
+  /**
+   * Sets the persistence unit of the outbox, the default persistence unit is used if it's not set.
+   */
+  public void setPUName(final String puName) {this.puName = puName;}
+
+  private int batchSize = 500;
+  public int getBatchSize() {return this.batchSize;}
+  public void setBatchSize(final int batchSize) {this.batchSize = batchSize;}
+
+  private int threadCount = 1;
+  public int getThreadCount() {return this.threadCount;}
+  public void setThreadCount(final int threadCount) {this.threadCount = threadCount;}
+
+  private int capacity = 2;
+  /**
+   * @return how many read batches may wait for a handler thread.
+   */
+  public int getCapacity() {return this.capacity;}
+  public void setCapacity(final int capacity) {this.capacity = capacity;}
+
+  private long pollInterval = 1000;
+  public long getPollInterval() {return this.pollInterval;}
+  public void setPollInterval(final long pollInterval) {this.pollInterval = pollInterval;}
+
+  private long retryDelay = 1000;
+  public long getRetryDelay() {return this.retryDelay;}
+  public void setRetryDelay(final long retryDelay) {this.retryDelay = retryDelay;}
+
+  private int maxAttempts = 5;
+  /**
+   * @return how many times the handler is called with a batch before the batch is split or its event becomes a dead letter.
+   */
+  public int getMaxAttempts() {return this.maxAttempts;}
+  public void setMaxAttempts(final int maxAttempts) {this.maxAttempts = maxAttempts;}
+
+  /**
+   * Identifiers of the events which have been read but haven't been deleted yet.
+   */
+  private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+  Set<Long> getInFlight() {return this.inFlight;}
+
+  private BlockingQueue<List<OutboxEvent>> queue;
+  private List<Thread> threads;
+  private boolean stopped;
+
+  /**
+   * Reader thread of the started relay, it's unparked to read the outbox without waiting for the poll interval.
+   */
+  private volatile Thread reader;
+
+  /**
+   * Starts the reader and the handler threads unless they are started already.
+   */
+  public synchronized void start() {
+    Preconditions.checkState(!this.stopped, "Outbox relay has been stopped.");
+
+    if (this.threads == null) {
+      Preconditions.checkState(this.handler != null, "Outbox handler is not set.");
+      Preconditions.checkState(this.batchSize > 0 && this.threadCount > 0 && this.capacity > 0 && this.pollInterval > 0
+        && this.retryDelay >= 0 && this.maxAttempts > 0);
+
+      this.queue = Queues.newArrayBlockingQueue(this.capacity);
+      this.threads = Lists.newArrayListWithCapacity(this.threadCount + 1);
+      this.threads.add(new Thread(this::read, "outbox-reader"));
+      for (int i = 0; i < this.threadCount; i++) {
+        this.threads.add(new Thread(this::handle, "outbox-handler-" + i));
+      }
+      this.reader = this.threads.get(0);
+      this.threads.forEach(thread -> {
+        thread.setDaemon(true);
+        thread.start();
+      });
+
+      OutboxRelay.LOG.debug("Started the outbox relay with {} handler threads.", this.threadCount);
+    }
+  }
+
+  /**
+   * Stops the relay and waits until its threads finish, events being delivered are read again by the next relay.
+   */
+  @PreDestroy
+  public synchronized void stop() {
+    this.stopped = true;
+
+    if (this.threads != null) {
+      this.reader = null;
+      this.threads.forEach(Thread::interrupt);
+      try {
+        for (Thread thread : this.threads) {
+          thread.join();
+        }
+      } catch (final InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+
+      this.threads = null;
+      this.queue = null;
+      this.inFlight.clear();
+
+      OutboxRelay.LOG.debug("Stopped the outbox relay.");
+    }
+  }
+
+  /**
+   * Makes the reader read the outbox without waiting for the poll interval, does nothing if the relay isn't running.
+   */
+  public void wake() {
+    Thread thread = this.reader;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  void read() {
+    BlockingQueue<List<OutboxEvent>> queue = this.queue;
+
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        List<OutboxEvent> batch = Lists.newArrayList();
+        try {
+          if (this.getGate().isOpen()) {
+            batch = this.readBatch();
+          }
+        } catch (final Exception ex) {
+          OutboxRelay.LOG.error("Failed to read the outbox, the cause error follows.", ex);
+        }
+
+        if (batch.isEmpty()) {
+          this.await();
+        } else {
+          batch.forEach(event -> this.inFlight.add(event.getId()));
+          queue.put(batch);
+
+          OutboxRelay.LOG.debug("Read {} outbox events.", batch.size());
+        }
+      }
+    } catch (final InterruptedException ex) {
+      OutboxRelay.LOG.debug("Outbox reader has been interrupted.");
+    }
+  }
+
+  /**
+   * Reads the oldest events which are not being delivered.
+   * The events being delivered are skipped in memory, so the query doesn't depend on the order of commits.
+   * The skipped events are taken before the query: an event removed from them later has been deleted
+   * before its removal, so it's either skipped or not seen by the query.
+   */
+  List<OutboxEvent> readBatch() throws Exception {
+    Set<Long> skipped = ImmutableSet.copyOf(this.inFlight);
+
+    List<OutboxEvent> events = this.execute(em -> em.createQuery(OutboxRelay.READ_QUERY, OutboxEvent.class)
+      .setMaxResults(this.batchSize + skipped.size())
+      .getResultList());
+
+    return events.stream()
+      .filter(event -> !skipped.contains(event.getId()))
+      .limit(this.batchSize)
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Waits for the poll interval or until the relay is woken up.
+   */
+  void await() throws InterruptedException {
+    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(this.pollInterval));
+
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  void handle() {
+    BlockingQueue<List<OutboxEvent>> queue = this.queue;
+
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        this.deliver(queue.take());
+      }
+    } catch (final InterruptedException ex) {
+      OutboxRelay.LOG.debug("Outbox handler has been interrupted.");
+    }
+  }
+
+  /**
+   * Passes the batch to the handler and deletes its events.
+   * If the handler keeps failing the halves of the batch are delivered separately
+   * and a single failing event is marked as a dead letter.
+   */
+  void deliver(final List<OutboxEvent> batch) throws InterruptedException {
+    if (this.pass(batch)) {
+      this.complete(batch, OutboxRelay.DELETE_QUERY);
+
+      OutboxRelay.LOG.debug("Delivered {} outbox events.", batch.size());
+    } else if (batch.size() > 1) {
+      OutboxRelay.LOG.warn("Outbox handler failed to handle {} events {} times, delivering their halves separately.", batch.size(), this.maxAttempts);
+
+      int half = batch.size() / 2;
+      this.deliver(Lists.newArrayList(batch.subList(0, half)));
+      this.deliver(Lists.newArrayList(batch.subList(half, batch.size())));
+    } else {
+      this.complete(batch, OutboxRelay.DEAD_LETTER_QUERY);
+
+      OutboxRelay.LOG.error("Outbox handler failed to handle {} {} times, it has been marked as a dead letter.", batch.get(0), this.maxAttempts);
+    }
+  }
+
+  /**
+   * Passes the batch to the handler, retries after the retry delay up to the maximal number of attempts.
+   *
+   * @return true if the handler has succeeded.
+   */
+  boolean pass(final List<OutboxEvent> batch) throws InterruptedException {
+    boolean result = false;
+
+    for (int attempt = 1; !result && attempt <= this.maxAttempts; attempt++) {
+      try {
+        this.getHandler().handle(batch);
+
+        result = true;
+      } catch (final InterruptedException ex) {
+        throw ex;
+      } catch (final Exception ex) {
+        OutboxRelay.LOG.warn("Failed to deliver {} outbox events (attempt {}), the cause error follows.", batch.size(), attempt, ex);
+
+        if (attempt < this.maxAttempts) {
+          this.sleep(this.retryDelay);
+        }
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Deletes or marks the handled events by the query and stops skipping them,
+   * retries until it succeeds since the failure isn't caused by the events.
+   */
+  void complete(final List<OutboxEvent> batch, final String query) throws InterruptedException {
+    List<Long> ids = batch.stream().map(OutboxEvent::getId).collect(Collectors.toList());
+
+    boolean done = false;
+    while (!done) {
+      try {
+        this.execute(em -> em.createQuery(query).setParameter("ids", ids).executeUpdate());
+
+        done = true;
+      } catch (final InterruptedException ex) {
+        throw ex;
+      } catch (final Exception ex) {
+        OutboxRelay.LOG.warn("Failed to update {} outbox events, retrying in {} ms, the cause error follows.", batch.size(), this.retryDelay, ex);
+
+        this.sleep(this.retryDelay);
+      }
+    }
+
+    this.inFlight.removeAll(ids);
+  }
+
+  /**
+   * Executes the work in a new transaction with an entity manager of the outbox persistence unit.
+   */
+  <T> T execute(final Function<EntityManager, T> work) throws Exception {
+    T result = null;
+
+    if (!this.getGate().isOpen()) {
+      throw new SystemException("Transactions are being drained, a new transaction cannot be started.");
+    }
+
+    Thread thread = Thread.currentThread();
+    this.getTM().begin();
+    try {
+      EntityManager em = this.getStore().acquire(this.puName, thread);
+      try {
+        result = work.apply(em);
+      } finally {
+        this.getStore().release(this.puName, thread);
+      }
+
+      this.getTM().commit();
+    } catch (final Exception ex) {
+      this.rollback();
+
+      throw ex;
+    }
+
+    return result;
+  }
+
+  void rollback() {
+    try {
+      int tmStatus = this.getTM().getStatus();
+      if (tmStatus != Status.STATUS_NO_TRANSACTION) {
+        this.getTM().rollback();
+      }
+    } catch (final IllegalStateException | SystemException ex) {
+      OutboxRelay.LOG.error("Failed to rollback the outbox transaction, the cause error follows.", ex);
+    }
+  }
+
+  void sleep(final long delay) throws InterruptedException {
+    Thread.sleep(delay);
+  }
+}
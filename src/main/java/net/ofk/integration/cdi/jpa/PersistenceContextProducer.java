@@ -0,0 +1,102 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.RequestScoped;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+
+/**
+ * Produces delegating entity managers bound to the HTTP request or to the unit of work,
+ * as well as tenant entity managers of the same scopes (see {@link TenantPersistenceContext}).
+ * The produced entity manager acquires an underlying entity manager from the store
+ * only when it's used for the first time, so requests which don't touch JPA create nothing,
+ * and it releases the underlying entity manager when the scope ends, so callers don't have to close it.
+ * The persistence unit is taken from a string bean named {@value #PU_NAME_PROPERTY} provided by the application,
+ * so every deployment has its own, then from the system property of the same name (which is shared by the JVM),
+ * if neither is set the default persistence unit is used.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@ApplicationScoped
+public class PersistenceContextProducer {
+  public static final String PU_NAME_PROPERTY = "net.ofk.integration.cdi.jpa.puName";
+
+  @Inject
+  public EntityManagerFactoryStore store;
+  EntityManagerFactoryStore getStore() {return this.store;}
+
+  @Inject
+  public Instance<TenantResolver> tenantResolvers;
+  /**
+   * The resolver is looked up only when a tenant entity manager is produced,
+   * so applications without tenants don't need to provide one.
+   */
+  TenantResolver getTenantResolver() {return this.tenantResolvers.get();}
+
+  @Inject
+  @Named(PersistenceContextProducer.PU_NAME_PROPERTY)
+  public Instance<String> puNames;
+
+  private volatile String puName;
+
+  /**
+   * The name is resolved when the first entity manager is produced.
+   */
+  String getPUName() {
+    String result = this.puName;
+    if (result == null) {
+      String configured = this.puNames.isUnsatisfied() ? System.getProperty(PersistenceContextProducer.PU_NAME_PROPERTY) : this.puNames.get();
+      result = EntityManagerFactoryStore.getPUName(configured);
+      this.puName = result;
+    }
+    return result;
+  }
+
+  @Produces
+  @RequestScoped
+  @RequestPersistenceContext
+  public EntityManager produceRequestEM() {
+    return new DelegatingEntityManager(this.getPUName(), this.getStore());
+  }
+
+  @Produces
+  @UnitOfWorkScoped
+  @UnitOfWorkPersistenceContext
+  public EntityManager produceUnitOfWorkEM() {
+    return new DelegatingEntityManager(this.getPUName(), this.getStore());
+  }
+
+  @Produces
+  @RequestScoped
+  @TenantPersistenceContext
+  public EntityManager produceRequestTenantEM() {
+    return new TenantEntityManager(this.getTenantResolver(), this.getStore());
+  }
+
+  @Produces
+  @UnitOfWorkScoped
+  @TenantPersistenceContext(unitOfWork = true)
+  public EntityManager produceUnitOfWorkTenantEM() {
+    return new TenantEntityManager(this.getTenantResolver(), this.getStore());
+  }
+
+  public void closeRequestEM(@Disposes @RequestPersistenceContext final EntityManager em) {
+    em.close();
+  }
+
+  public void closeUnitOfWorkEM(@Disposes @UnitOfWorkPersistenceContext final EntityManager em) {
+    em.close();
+  }
+
+  public void closeRequestTenantEM(@Disposes @TenantPersistenceContext final EntityManager em) {
+    em.close();
+  }
+
+  public void closeUnitOfWorkTenantEM(@Disposes @TenantPersistenceContext(unitOfWork = true) final EntityManager em) {
+    em.close();
+  }
+}
@@ -0,0 +1,261 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.persistence.Query;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Times flushes, query executions and commits per persistence unit and per calling transactional method.
+ * The calling method is set by the transaction interceptor, operations outside of intercepted methods
+ * are accounted to an unknown caller. Query timings include automatic flushes done before the queries,
+ * commit timings include the flushes done at the commit and are accounted to all persistence units.
+ * The profiler is disabled by default and costs nothing then, it can be enabled over JMX.
+ * While it's enabled queries are wrapped into proxies implementing only the JPA query interface,
+ * so they can't be cast to provider-specific query types (unwrap(Class) still works).
+ * The profiler is shared within the class loader, it's registered and unregistered with the entity manager factory store
+ * under a name with its own id, so profilers of several applications deployed in one JVM don't conflict.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public final class PersistenceProfiler implements PersistenceProfilerMXBean {
+  private static final Logger LOG = LoggerFactory.getLogger(PersistenceProfiler.class);
+
+  public static final String OBJECT_NAME_PREFIX = "net.ofk.integration:type=PersistenceProfiler,id=";
+
+  public static final String FLUSH = "flush";
+  public static final String QUERY = "query";
+  public static final String COMMIT = "commit";
+
+  private static final String ALL_PU_NAMES = "*";
+  private static final String UNKNOWN_CALLER = "?";
+
+  private static final PersistenceProfiler INSTANCE = new PersistenceProfiler();
+  public static PersistenceProfiler getInstance() {return PersistenceProfiler.INSTANCE;}
+
+  private static final ThreadLocal<String> CALLER = new ThreadLocal<>();
+
+  private final ConcurrentMap<String, PersistenceProfiler.Timing> timings = Maps.newConcurrentMap();
+
+  private ObjectName objectName;
+  synchronized ObjectName getObjectName() {return this.objectName;}
+
+  private volatile boolean enabled;
+  @Override
+  public boolean isEnabled() {return this.enabled;}
+  @Override
+  public void setEnabled(final boolean enabled) {this.enabled = enabled;}
+
+  PersistenceProfiler() {
+  }
+
+  /**
+   * Registers the profiler in the platform MBean server unless it's already registered.
+   */
+  public synchronized void register() {
+    if (this.objectName == null) {
+      try {
+        ObjectName name = new ObjectName(PersistenceProfiler.OBJECT_NAME_PREFIX + Integer.toHexString(System.identityHashCode(this)));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        this.objectName = name;
+
+        PersistenceProfiler.LOG.debug("Registered the persistence profiler {}.", name);
+      } catch (final JMException ex) {
+        PersistenceProfiler.LOG.warn("Failed to register the persistence profiler, the cause error follows.", ex);
+      }
+    }
+  }
+
+  /**
+   * Unregisters the profiler from the platform MBean server if it's registered,
+   * profilers registered by other class loaders are left registered.
+   */
+  public synchronized void unregister() {
+    ObjectName name = this.objectName;
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        this.objectName = null;
+
+        PersistenceProfiler.LOG.debug("Unregistered the persistence profiler {}.", name);
+      } catch (final JMException ex) {
+        PersistenceProfiler.LOG.warn("Failed to unregister the persistence profiler, the cause error follows.", ex);
+      }
+    }
+  }
+
+  /**
+   * Sets the method which operations of the current thread are accounted to.
+   *
+   * @param caller - name of the calling method.
+   * @return the previous calling method which should be restored by {@link #leave(String)}.
+   */
+  public static String enter(final String caller) {
+    String previous = PersistenceProfiler.CALLER.get();
+    PersistenceProfiler.CALLER.set(caller);
+    return previous;
+  }
+
+  /**
+   * Restores the calling method of the current thread.
+   *
+   * @param previous - value returned by {@link #enter(String)}.
+   */
+  public static void leave(final String previous) {
+    if (previous == null) {
+      PersistenceProfiler.CALLER.remove();
+    } else {
+      PersistenceProfiler.CALLER.set(previous);
+    }
+  }
+
+  /**
+   * @return start time of an operation or zero if the profiler is disabled.
+   */
+  public long start() {
+    return this.enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records an operation started at the given time.
+   *
+   * @param operation - profiled operation.
+   * @param puName - persistence unit of the operation or null if it concerns all of them.
+   * @param start - value returned by {@link #start()}.
+   */
+  public void record(final String operation, final String puName, final long start) {
+    if (start != 0) {
+      long duration = System.nanoTime() - start;
+      String pu = puName == null ? PersistenceProfiler.ALL_PU_NAMES : EntityManagerFactoryStore.getPUName(puName);
+      String caller = PersistenceProfiler.CALLER.get();
+      String method = caller == null ? PersistenceProfiler.UNKNOWN_CALLER : caller;
+
+      this.timings.computeIfAbsent(operation + ' ' + pu + ' ' + method, key -> new PersistenceProfiler.Timing(operation, pu, method)).add(duration);
+    }
+  }
+
+  /**
+   * Wraps the query to time its executions if the profiler is enabled.
+   * The wrapper implements only the given interface, casts to provider-specific query types fail on it,
+   * callers should use {@link Query#unwrap(Class)} which is passed to the wrapped query.
+   *
+   * @param query - query to wrap.
+   * @param type - interface of the query.
+   * @param puName - persistence unit of the query.
+   * @return the wrapped query or the query itself if the profiler is disabled.
+   */
+  @SuppressWarnings("unchecked")
+  <Q extends Query> Q profile(final Q query, final Class<? super Q> type, final String puName) {
+    Q result = query;
+
+    if (this.enabled && query != null) {
+      result = (Q) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+        boolean execution = "getResultList".equals(method.getName())
+          || "getSingleResult".equals(method.getName())
+          || "executeUpdate".equals(method.getName());
+        long start = execution ? this.start() : 0;
+
+        Object value = null;
+        try {
+          value = method.invoke(query, args);
+        } catch (final InvocationTargetException ex) {
+          throw ex.getCause();
+        } finally {
+          this.record(PersistenceProfiler.QUERY, puName, start);
+        }
+
+        // fluent setters return the wrapper, unwrap returns the provider query itself
+        return value == query && !"unwrap".equals(method.getName()) ? proxy : value;
+      });
+    }
+
+    return result;
+  }
+
+  @Override
+  public List<PersistenceProfiler.Entry> getEntries() {
+    return this.timings.values().stream()
+      .map(PersistenceProfiler.Timing::toEntry)
+      .sorted(Comparator.comparingLong(PersistenceProfiler.Entry::getTotalMillis).reversed())
+      .collect(Collectors.toList());
+  }
+
+  @Override
+  public void reset() {
+    this.timings.clear();
+  }
+
+  /**
+   * Accumulated durations of an operation.
+   */
+  static class Timing {
+    private final String operation;
+    private final String puName;
+    private final String caller;
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Timing(final String operation, final String puName, final String caller) {
+      this.operation = operation;
+      this.puName = puName;
+      this.caller = caller;
+    }
+
+    void add(final long duration) {
+      this.count.incrementAndGet();
+      this.total.addAndGet(duration);
+      this.max.accumulateAndGet(duration, Math::max);
+    }
+
+    PersistenceProfiler.Entry toEntry() {
+      return new PersistenceProfiler.Entry(this.operation, this.puName, this.caller, this.count.get(),
+        TimeUnit.NANOSECONDS.toMillis(this.total.get()), TimeUnit.NANOSECONDS.toMillis(this.max.get()));
+    }
+  }
+
+  /**
+   * Snapshot of the timings of an operation exposed over JMX.
+   */
+  public static class Entry {
+    private final String operation;
+    public String getOperation() {return this.operation;}
+
+    private final String puName;
+    public String getPUName() {return this.puName;}
+
+    private final String caller;
+    public String getCaller() {return this.caller;}
+
+    private final long count;
+    public long getCount() {return this.count;}
+
+    private final long totalMillis;
+    public long getTotalMillis() {return this.totalMillis;}
+
+    private final long maxMillis;
+    public long getMaxMillis() {return this.maxMillis;}
+
+    public Entry(final String operation, final String puName, final String caller, final long count, final long totalMillis, final long maxMillis) {
+      this.operation = operation;
+      this.puName = puName;
+      this.caller = caller;
+      this.count = count;
+      this.totalMillis = totalMillis;
+      this.maxMillis = maxMillis;
+    }
+  }
+}
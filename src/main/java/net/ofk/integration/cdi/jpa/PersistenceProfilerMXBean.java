@@ -0,0 +1,23 @@
+package net.ofk.integration.cdi.jpa;
+
+import java.util.List;
+
+/**
+ * Management interface of the {@link PersistenceProfiler}.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public interface PersistenceProfilerMXBean {
+  boolean isEnabled();
+  void setEnabled(boolean enabled);
+
+  /**
+   * @return timings collected since the last reset, the slowest operations first.
+   */
+  List<PersistenceProfiler.Entry> getEntries();
+
+  /**
+   * Discards the collected timings.
+   */
+  void reset();
+}
@@ -0,0 +1,107 @@
+package net.ofk.integration.cdi.jpa;
+
+import net.ofk.integration.cdi.jta.TransactionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.lang.reflect.Method;
+import java.util.Set;
+
+/**
+ * Connects the persistence layer to transactions of the interceptors and the commit pipeline.
+ * Transactional methods become callers of the {@link PersistenceProfiler} while it's enabled
+ * and commits are timed by it. Entities changed within a transaction are captured by {@link EntityChanges}
+ * and their keys are published once the transaction is committed, the outbox relay is woken up
+ * if the transaction has published outbox events; both are discarded if the transaction is rolled back.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Named
+@ApplicationScoped
+public class PersistenceTransactionListener implements TransactionListener {
+  private static final Logger LOG = LoggerFactory.getLogger(PersistenceTransactionListener.class);
+
+  /**
+   * State of methods entered while the profiler is disabled.
+   */
+  private static final Object NOT_PROFILED = new Object();
+
+  @Inject
+  public InvalidationPublisher publisher;
+  InvalidationPublisher getPublisher() {return this.publisher;}
+
+  @Inject
+  public OutboxRelay relay;
+  OutboxRelay getRelay() {return this.relay;}
+
+  @Override
+  public Object enter(final Method method) {
+    Object result = PersistenceTransactionListener.NOT_PROFILED;
+    if (method != null && PersistenceProfiler.getInstance().isEnabled()) {
+      result = PersistenceProfiler.enter(method.getDeclaringClass().getName() + '.' + method.getName());
+    }
+    return result;
+  }
+
+  @Override
+  public void exit(final Object state) {
+    if (state != PersistenceTransactionListener.NOT_PROFILED) {
+      PersistenceProfiler.leave((String) state);
+    }
+  }
+
+  @Override
+  public void begun() {
+    EntityChanges.start();
+  }
+
+  @Override
+  public long beforeCommit() {
+    return PersistenceProfiler.getInstance().start();
+  }
+
+  @Override
+  public void afterCommit(final long state, final boolean committed) {
+    PersistenceProfiler.getInstance().record(PersistenceProfiler.COMMIT, null, state);
+
+    if (committed) {
+      this.publish(EntityChanges.take(), Outbox.take());
+    } else {
+      this.rolledBack();
+    }
+  }
+
+  @Override
+  public void rolledBack() {
+    EntityChanges.discard();
+    Outbox.discard();
+  }
+
+  /**
+   * Publishes the changed keys and wakes the outbox relay up.
+   * The transaction is already committed, so failures are only logged and never reach the caller.
+   *
+   * @param keys - keys of the entities changed by the transaction.
+   * @param published - true if the transaction has published outbox events.
+   */
+  void publish(final Set<EntityKey> keys, final boolean published) {
+    try {
+      if (!keys.isEmpty()) {
+        this.getPublisher().publish(keys);
+      }
+    } catch (final RuntimeException ex) {
+      PersistenceTransactionListener.LOG.error("Failed to publish invalidated keys of the committed transaction, the cause error follows.", ex);
+    }
+
+    try {
+      if (published) {
+        this.getRelay().wake();
+      }
+    } catch (final RuntimeException ex) {
+      PersistenceTransactionListener.LOG.error("Failed to wake the outbox relay up, the cause error follows.", ex);
+    }
+  }
+}
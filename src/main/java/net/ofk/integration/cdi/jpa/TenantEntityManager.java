@@ -0,0 +1,135 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.Maps;
+import net.ofk.integration.cdi.jta.PendingTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.util.Map;
+
+/**
+ * Delegating entity manager which resolves the persistence unit on every call,
+ * so the same bean works with the persistence unit of the tenant the current thread works for.
+ * Calls are routed to a delegating entity manager of the resolved persistence unit
+ * which lazily initializes underlying entity managers per thread.
+ * Underlying entity managers are held until the tenant entity manager is closed,
+ * so it should be bound to a scope (see {@link TenantPersistenceContext}) rather than live as long as the application.
+ * Delegating entity managers of tenants which hold nothing are pruned when the number of tenants grows.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class TenantEntityManager extends DelegatingEntityManager {
+  private static final Logger LOG = LoggerFactory.getLogger(TenantEntityManager.class);
+
+  private static final int MIN_PRUNE_THRESHOLD = 16;
+
+  private final Map<String, DelegatingEntityManager> tenantEMs = Maps.newHashMap();
+  Map<String, DelegatingEntityManager> getTenantEMs() {return this.tenantEMs;}
+
+  /**
+   * Number of tenants which makes the next new tenant prune the idle ones, guarded by the map of tenants.
+   */
+  private int pruneThreshold = TenantEntityManager.MIN_PRUNE_THRESHOLD;
+
+  private final TenantResolver resolver;
+
+  public TenantEntityManager(final TenantResolver resolver, final EntityManagerFactoryStore store) {
+    super(null, store);
+
+    this.resolver = resolver;
+  }
+
+  /**
+   * @return name of the persistence unit of the current tenant.
+   */
+  protected String resolvePUName() {
+    return this.resolver.resolvePUName();
+  }
+
+  @Override
+  public String getPUName() {
+    return this.resolvePUName();
+  }
+
+  /**
+   * Returns the delegating entity manager of the persistence unit of the current tenant.
+   * Should be called holding the lock of the tenant map, so the returned entity manager isn't pruned before it's used.
+   *
+   * @return delegating entity manager of the persistence unit of the current tenant.
+   */
+  DelegatingEntityManager getTenantEM() {
+    String puName = this.resolvePUName();
+
+    synchronized (this.getTenantEMs()) {
+      DelegatingEntityManager em = this.getTenantEMs().get(puName);
+      if (em == null) {
+        this.prune();
+
+        em = this.createTenantEM(puName);
+        this.getTenantEMs().put(puName, em);
+
+        TenantEntityManager.LOG.debug("Created a delegating entity manager of the {} persistence unit.", EntityManagerFactoryStore.getPUName(puName));
+      }
+      return em;
+    }
+  }
+
+  /**
+   * Removes delegating entity managers of the tenants which hold nothing,
+   * the threshold doubles with the number of remaining tenants so pruning stays amortized.
+   */
+  void prune() {
+    if (this.getTenantEMs().size() >= this.pruneThreshold) {
+      int size = this.getTenantEMs().size();
+      this.getTenantEMs().values().removeIf(DelegatingEntityManager::isIdle);
+      this.pruneThreshold = Math.max(TenantEntityManager.MIN_PRUNE_THRESHOLD, this.getTenantEMs().size() * 2);
+
+      TenantEntityManager.LOG.debug("Pruned {} idle tenants.", size - this.getTenantEMs().size());
+    }
+  }
+
+  DelegatingEntityManager createTenantEM(final String puName) {
+    return new DelegatingEntityManager(puName, this.getStore());
+  }
+
+  @Override
+  EntityManager getEM() {
+    PendingTransaction.start();
+
+    synchronized (this.getTenantEMs()) {
+      return this.getTenantEM().getEM();
+    }
+  }
+
+  @Override
+  EntityManager findEM() {
+    synchronized (this.getTenantEMs()) {
+      return this.getTenantEM().findEM();
+    }
+  }
+
+  @Override
+  EntityManagerFactory getEMF() {
+    return this.getTenantEM().getEMF();
+  }
+
+  @Override
+  EntityManagerFactory getPinnedEMF() {
+    synchronized (this.getTenantEMs()) {
+      return this.getTenantEM().getPinnedEMF();
+    }
+  }
+
+  /**
+   * Closes underlying entity managers of all tenants.
+   */
+  @Override
+  public void close() {
+    synchronized (this.getTenantEMs()) {
+      this.getTenantEMs().values().forEach(DelegatingEntityManager::close);
+      this.getTenantEMs().clear();
+    }
+  }
+}
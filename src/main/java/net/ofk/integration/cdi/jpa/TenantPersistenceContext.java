@@ -0,0 +1,24 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Qualifies the tenant entity manager which lives as long as the current HTTP request
+ * or, if {@link #unitOfWork()} is set, as long as the current unit of work.
+ * The persistence unit of the tenant is resolved by the {@link TenantResolver} bean of the application.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Qualifier
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface TenantPersistenceContext {
+  /**
+   * @return true for the entity manager of the unit of work, false for the one of the HTTP request.
+   */
+  boolean unitOfWork() default false;
+}
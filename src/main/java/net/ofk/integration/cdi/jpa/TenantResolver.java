@@ -0,0 +1,14 @@
+package net.ofk.integration.cdi.jpa;
+
+/**
+ * Resolves the persistence unit of the tenant the current thread works for.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@FunctionalInterface
+public interface TenantResolver {
+  /**
+   * @return name of the persistence unit of the current tenant.
+   */
+  String resolvePUName();
+}
@@ -0,0 +1,115 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.enterprise.context.ContextNotActiveException;
+import javax.enterprise.context.spi.Context;
+import javax.enterprise.context.spi.Contextual;
+import javax.enterprise.context.spi.CreationalContext;
+import java.lang.annotation.Annotation;
+import java.util.Map;
+
+/**
+ * Context of the {@link UnitOfWorkScoped} scope.
+ * Instances are kept per thread, the context is active between {@link #begin()} and {@link #end()}
+ * and the instances created in between are destroyed by {@link #end()}.
+ * Units of work are not nested, calling {@link #begin()} twice is an error.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class UnitOfWorkContext implements Context {
+  private static final Logger LOG = LoggerFactory.getLogger(UnitOfWorkContext.class);
+
+  private static final ThreadLocal<Map<Contextual<?>, UnitOfWorkContext.Instance<?>>> INSTANCES = new ThreadLocal<>();
+
+  /**
+   * Starts a unit of work in the current thread.
+   */
+  public static void begin() {
+    Preconditions.checkState(UnitOfWorkContext.INSTANCES.get() == null, "Unit of work has already been started.");
+
+    UnitOfWorkContext.INSTANCES.set(Maps.newHashMap());
+
+    UnitOfWorkContext.LOG.debug("Started a unit of work.");
+  }
+
+  /**
+   * Ends the unit of work of the current thread destroying all instances created within it.
+   * Does nothing if there is no unit of work.
+   */
+  public static void end() {
+    Map<Contextual<?>, UnitOfWorkContext.Instance<?>> instances = UnitOfWorkContext.INSTANCES.get();
+    if (instances != null) {
+      UnitOfWorkContext.INSTANCES.remove();
+
+      instances.values().forEach(UnitOfWorkContext.Instance::destroy);
+
+      UnitOfWorkContext.LOG.debug("Ended a unit of work, {} instances have been destroyed.", instances.size());
+    }
+  }
+
+  @Override
+  public Class<? extends Annotation> getScope() {
+    return UnitOfWorkScoped.class;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T get(final Contextual<T> contextual, final CreationalContext<T> creationalContext) {
+    Map<Contextual<?>, UnitOfWorkContext.Instance<?>> instances = this.getInstances();
+
+    UnitOfWorkContext.Instance<T> instance = (UnitOfWorkContext.Instance<T>) instances.get(contextual);
+    if (instance == null && creationalContext != null) {
+      instance = new UnitOfWorkContext.Instance<>(contextual, creationalContext);
+      instances.put(contextual, instance);
+    }
+
+    return instance == null ? null : instance.getValue();
+  }
+
+  @Override
+  public <T> T get(final Contextual<T> contextual) {
+    return this.get(contextual, null);
+  }
+
+  @Override
+  public boolean isActive() {
+    return UnitOfWorkContext.INSTANCES.get() != null;
+  }
+
+  private Map<Contextual<?>, UnitOfWorkContext.Instance<?>> getInstances() {
+    Map<Contextual<?>, UnitOfWorkContext.Instance<?>> instances = UnitOfWorkContext.INSTANCES.get();
+    if (instances == null) {
+      throw new ContextNotActiveException("There is no unit of work in the current thread.");
+    }
+    return instances;
+  }
+
+  /**
+   * Contextual instance with the creational context needed to destroy it.
+   */
+  static class Instance<T> {
+    private final Contextual<T> contextual;
+    private final CreationalContext<T> creationalContext;
+
+    private final T value;
+    public T getValue() {return this.value;}
+
+    Instance(final Contextual<T> contextual, final CreationalContext<T> creationalContext) {
+      this.contextual = contextual;
+      this.creationalContext = creationalContext;
+      this.value = contextual.create(creationalContext);
+    }
+
+    void destroy() {
+      try {
+        this.contextual.destroy(this.value, this.creationalContext);
+      } catch (final RuntimeException ex) {
+        UnitOfWorkContext.LOG.error("Failed to destroy an instance of the unit of work, the cause error follows.", ex);
+      }
+    }
+  }
+}
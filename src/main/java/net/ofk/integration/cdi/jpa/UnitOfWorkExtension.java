@@ -0,0 +1,16 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.AfterBeanDiscovery;
+import javax.enterprise.inject.spi.Extension;
+
+/**
+ * Registers the context of the {@link UnitOfWorkScoped} scope.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class UnitOfWorkExtension implements Extension {
+  void addContext(@Observes final AfterBeanDiscovery afterBeanDiscovery) {
+    afterBeanDiscovery.addContext(new UnitOfWorkContext());
+  }
+}
@@ -0,0 +1,18 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Qualifies the entity manager which lives as long as the current unit of work, see {@link UnitOfWorkScoped}.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Qualifier
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD, ElementType.PARAMETER})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface UnitOfWorkPersistenceContext {
+}
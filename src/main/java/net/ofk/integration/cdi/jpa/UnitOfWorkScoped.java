@@ -0,0 +1,21 @@
+package net.ofk.integration.cdi.jpa;
+
+import javax.enterprise.context.NormalScope;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Scope which lasts from {@link UnitOfWorkContext#begin()} till {@link UnitOfWorkContext#end()} in the same thread.
+ * Useful for units of work which are not HTTP requests: jobs, message listeners, etc.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Inherited
+@NormalScope
+@Target({ElementType.TYPE, ElementType.METHOD, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface UnitOfWorkScoped {
+}
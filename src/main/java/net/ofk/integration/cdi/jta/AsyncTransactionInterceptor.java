@@ -0,0 +1,83 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import javax.inject.Inject;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+
+/**
+ * Intercepts any method invocation annotated with the {@link AsyncTransactional} annotation
+ * and hands the invocation over to the commit pipeline instead of executing it in the calling thread.
+ * The invocation context is valid only during the call, so the target bean, the method and its parameters
+ * are captured and the method is invoked on the target directly by the pipeline worker.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@AsyncTransactional
+@Interceptor
+public class AsyncTransactionInterceptor {
+  @Inject
+  public CommitPipeline pipeline;
+  CommitPipeline getPipeline() {return this.pipeline;}
+
+  @AroundInvoke
+  public Object intercept(final InvocationContext invocationContext) throws Exception {
+    Method method = invocationContext.getMethod();
+    Preconditions.checkState(AsyncTransactionInterceptor.isSupported(method), "Asynchronous transactional method %s must return void, Future or CompletionStage.", method);
+
+    Object target = invocationContext.getTarget();
+    Object[] parameters = invocationContext.getParameters();
+    Object[] arguments = parameters == null ? null : parameters.clone();
+    method.setAccessible(true);
+
+    CompletableFuture<Object> future = this.getPipeline().submit(() -> AsyncTransactionInterceptor.invoke(target, method, arguments));
+
+    return method.getReturnType() == void.class ? null : future;
+  }
+
+  /**
+   * Invokes the method in a pipeline worker.
+   * A future returned by the method must be completed already, the worker doesn't wait for it.
+   *
+   * @return result of the method or of its future.
+   */
+  static Object invoke(final Object target, final Method method, final Object[] arguments) throws Exception {
+    Object result = null;
+
+    try {
+      result = method.invoke(target, arguments);
+    } catch (final InvocationTargetException ex) {
+      Throwables.propagateIfInstanceOf(ex.getCause(), Exception.class);
+      throw Throwables.propagate(ex.getCause());
+    }
+
+    if (result instanceof CompletionStage) {
+      result = ((CompletionStage<?>) result).toCompletableFuture();
+    }
+    if (result instanceof Future) {
+      Future<?> future = (Future<?>) result;
+      Preconditions.checkState(future.isDone(), "Asynchronous transactional method %s must return a completed future.", method);
+
+      result = future.get();
+    }
+
+    return result;
+  }
+
+  /**
+   * @param method - method annotated with {@link AsyncTransactional}.
+   * @return true if the caller of the method can receive the future of the pipeline.
+   */
+  static boolean isSupported(final Method method) {
+    Class<?> returnType = method.getReturnType();
+    return returnType == void.class || returnType == Future.class || returnType == CompletionStage.class || returnType == CompletableFuture.class;
+  }
+}
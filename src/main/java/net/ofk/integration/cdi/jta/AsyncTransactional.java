@@ -0,0 +1,28 @@
+package net.ofk.integration.cdi.jta;
+
+import javax.interceptor.InterceptorBinding;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks methods which should be executed and committed asynchronously by the {@link CommitPipeline}.
+ * Annotated methods must return void, {@link java.util.concurrent.Future}, {@link java.util.concurrent.CompletionStage}
+ * or {@link java.util.concurrent.CompletableFuture}, other methods are rejected when the application is deployed.
+ * The caller receives a future which completes when the work has been committed,
+ * a future returned by the method itself must already be completed (e.g. {@code CompletableFuture.completedFuture(result)}).
+ * The method is invoked on the target bean by a pipeline worker after the call has returned,
+ * so interceptors and decorators following the asynchronous transaction interceptor are not applied
+ * and the target bean should outlive the call (e.g. be application scoped).
+ * The method may be executed several times, see {@link CommitPipeline}.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Inherited
+@InterceptorBinding
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AsyncTransactional {
+}
@@ -0,0 +1,48 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.collect.Lists;
+
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.AfterBeanDiscovery;
+import javax.enterprise.inject.spi.AnnotatedMethod;
+import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.DefinitionException;
+import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.ProcessAnnotatedType;
+import javax.enterprise.inject.spi.WithAnnotations;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+/**
+ * Rejects the deployment if a method intercepted by the {@link AsyncTransactionInterceptor}
+ * returns anything but void, {@link java.util.concurrent.Future} or {@link java.util.concurrent.CompletionStage},
+ * the caller of such a method would fail on the future returned instead of the result.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class AsyncTransactionalExtension implements Extension {
+  private final List<String> errors = Lists.newArrayList();
+  List<String> getErrors() {return this.errors;}
+
+  <T> void validate(@Observes @WithAnnotations(AsyncTransactional.class) final ProcessAnnotatedType<T> event) {
+    AnnotatedType<T> type = event.getAnnotatedType();
+    boolean annotatedType = type.isAnnotationPresent(AsyncTransactional.class);
+
+    for (AnnotatedMethod<? super T> annotatedMethod : type.getMethods()) {
+      Method method = annotatedMethod.getJavaMember();
+      boolean intercepted = (annotatedType || annotatedMethod.isAnnotationPresent(AsyncTransactional.class))
+        && !Modifier.isStatic(method.getModifiers())
+        && !Modifier.isPrivate(method.getModifiers())
+        && method.getDeclaringClass() != Object.class;
+
+      if (intercepted && !AsyncTransactionInterceptor.isSupported(method)) {
+        this.errors.add("Asynchronous transactional method " + method + " must return void, Future or CompletionStage.");
+      }
+    }
+  }
+
+  void report(@Observes final AfterBeanDiscovery event) {
+    this.errors.forEach(error -> event.addDefinitionError(new DefinitionException(error)));
+  }
+}
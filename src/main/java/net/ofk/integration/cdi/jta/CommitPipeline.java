@@ -0,0 +1,304 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes units of work in dedicated threads grouping several units into one transaction (group commit).
+ * A worker takes the first queued unit and waits up to the flush interval
+ * for more units until the group reaches its maximal size,
+ * then all units of the group are executed in a single transaction which is committed once.
+ * Every transaction runs in its own unit of work of the worker,
+ * entity managers acquired by the units are released when the transaction completes.
+ * The {@link TransactionListener} is notified when the transaction of a group begins, commits and rolls back,
+ * e.g. to publish keys of the entities changed by a committed group.
+ * <p>
+ * A unit which throws fails with its error and is not executed again.
+ * The transaction of its group is rolled back, so the other units of the group are executed again
+ * in a new transaction without it; if the commit itself fails every unit is executed again in its own transaction.
+ * Hence a unit may be executed several times and anything it does outside of the transaction
+ * (remote calls, events, thread state) should be idempotent.
+ * If the transaction can't be started (e.g. the transaction gate is closed) the units fail without being executed.
+ * <p>
+ * The queue is bounded, callers block when it's full.
+ * Settings are effective only if they are changed before the first unit is submitted,
+ * the pipeline doesn't accept units once it has been stopped.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Named
+@ApplicationScoped
+public class CommitPipeline {
+  private static final Logger LOG = LoggerFactory.getLogger(CommitPipeline.class);
+  private static final String STOPPED = "Commit pipeline has been stopped.";
+  private static final long OFFER_INTERVAL = 100;
+
+  @Resource(name="TransactionManager")
+  public TransactionManager tm;
+  TransactionManager getTM() {return this.tm;}
+
+  @Inject
+  public TransactionGate gate;
+  TransactionGate getGate() {return this.gate;}
+
+  @Inject
+  public TransactionResources resources;
+  TransactionResources getResources() {return this.resources;}
+
+  @Inject
+  public TransactionListener listener;
+  TransactionListener getListener() {return this.listener;}
+
+  private long flushInterval = 10;
+  public long getFlushInterval() {return this.flushInterval;}
+  public void setFlushInterval(final long flushInterval) {this.flushInterval = flushInterval;}
+
+  private int maxGroupSize = 50;
+  public int getMaxGroupSize() {return this.maxGroupSize;}
+  public void setMaxGroupSize(final int maxGroupSize) {this.maxGroupSize = maxGroupSize;}
+
+  private int capacity = 1000;
+  public int getCapacity() {return this.capacity;}
+  public void setCapacity(final int capacity) {this.capacity = capacity;}
+
+  private int threadCount = 1;
+  public int getThreadCount() {return this.threadCount;}
+  public void setThreadCount(final int threadCount) {this.threadCount = threadCount;}
+
+  private BlockingQueue<CommitPipeline.Unit<?>> queue;
+  private List<Thread> workers;
+  private boolean stopped;
+
+  /**
+   * Queues a unit of work, blocks if the queue is full.
+   * If the pipeline is stopped while the unit is being queued, the returned future fails.
+   *
+   * @param callable - unit of work.
+   * @return future completed with the result of the unit when its transaction is committed.
+   */
+  public <T> CompletableFuture<T> submit(final Callable<T> callable) throws InterruptedException {
+    CommitPipeline.Unit<T> unit = new CommitPipeline.Unit<>(callable);
+    BlockingQueue<CommitPipeline.Unit<?>> queue = this.getQueue();
+
+    // nobody takes units from the queue of a stopped pipeline, so the stop is checked while waiting
+    boolean queued = false;
+    while (!queued && !this.failIfStopped(unit)) {
+      queued = queue.offer(unit, CommitPipeline.OFFER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // the pipeline may be stopped after its queue has been drained
+    if (queued) {
+      this.failIfStopped(unit);
+    }
+    return unit.getFuture();
+  }
+
+  private synchronized boolean failIfStopped(final CommitPipeline.Unit<?> unit) {
+    if (this.stopped) {
+      unit.fail(new IllegalStateException(CommitPipeline.STOPPED));
+    }
+    return this.stopped;
+  }
+
+  synchronized BlockingQueue<CommitPipeline.Unit<?>> getQueue() {
+    Preconditions.checkState(!this.stopped, CommitPipeline.STOPPED);
+
+    if (this.queue == null) {
+      Preconditions.checkState(this.capacity > 0 && this.maxGroupSize > 0 && this.threadCount > 0 && this.flushInterval >= 0);
+
+      this.queue = Queues.newArrayBlockingQueue(this.capacity);
+      this.workers = Lists.newArrayListWithCapacity(this.threadCount);
+      for (int i = 0; i < this.threadCount; i++) {
+        Thread worker = new Thread(this::work, "commit-pipeline-" + i);
+        worker.setDaemon(true);
+        worker.start();
+        this.workers.add(worker);
+      }
+
+      CommitPipeline.LOG.debug("Started {} commit pipeline workers.", this.threadCount);
+    }
+    return this.queue;
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    this.stopped = true;
+
+    if (this.workers != null) {
+      this.workers.forEach(Thread::interrupt);
+      this.workers = null;
+
+      List<CommitPipeline.Unit<?>> units = Lists.newArrayList();
+      this.queue.drainTo(units);
+      units.forEach(unit -> unit.fail(new IllegalStateException(CommitPipeline.STOPPED)));
+      this.queue = null;
+
+      CommitPipeline.LOG.debug("Stopped the commit pipeline, {} queued units have been discarded.", units.size());
+    }
+  }
+
+  void work() {
+    BlockingQueue<CommitPipeline.Unit<?>> queue = this.queue;
+    List<CommitPipeline.Unit<?>> group = Lists.newArrayListWithCapacity(this.maxGroupSize);
+
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        group.add(queue.take());
+        Queues.drain(queue, group, this.maxGroupSize - 1, this.flushInterval, TimeUnit.MILLISECONDS);
+
+        this.commit(group);
+        group.clear();
+      }
+    } catch (final InterruptedException ex) {
+      group.forEach(unit -> unit.getFuture().completeExceptionally(ex));
+    }
+  }
+
+  /**
+   * Executes the units in one transaction.
+   * Falls back to smaller transactions if the group fails.
+   */
+  void commit(final List<CommitPipeline.Unit<?>> group) {
+    CommitPipeline.Unit<?> current = null;
+    Throwable failure = null;
+    boolean begun = false;
+
+    try {
+      this.getResources().beginUnitOfWork();
+
+      if (!this.getGate().isOpen()) {
+        throw new SystemException("Transactions are being drained, a new transaction cannot be started.");
+      }
+
+      this.getTM().begin();
+      begun = true;
+      this.getListener().begun();
+
+      for (CommitPipeline.Unit<?> unit : group) {
+        current = unit;
+        unit.call();
+      }
+      current = null;
+
+      long state = this.getListener().beforeCommit();
+      boolean committed = false;
+      try {
+        this.getTM().commit();
+        committed = true;
+      } finally {
+        this.afterCommit(state, committed);
+      }
+
+      CommitPipeline.LOG.debug("Committed a group of {} units.", group.size());
+    } catch (final Throwable th) {
+      failure = th;
+
+      if (begun) {
+        this.getListener().rolledBack();
+      }
+      this.rollback();
+    } finally {
+      this.endUnitOfWork();
+    }
+
+    if (failure == null) {
+      group.forEach(CommitPipeline.Unit::complete);
+    } else if (!begun || group.size() == 1) {
+      this.fail(group, failure);
+    } else if (current != null) {
+      current.fail(failure);
+
+      List<CommitPipeline.Unit<?>> rest = Lists.newArrayList(group);
+      rest.remove(current);
+
+      CommitPipeline.LOG.debug("A unit of a group of {} units failed, committing the rest.", group.size());
+
+      this.commit(rest);
+    } else {
+      CommitPipeline.LOG.debug("Group of {} units failed to commit, committing them separately.", group.size());
+
+      group.forEach(unit -> this.commit(Lists.newArrayList(unit)));
+    }
+  }
+
+  void fail(final List<CommitPipeline.Unit<?>> group, final Throwable failure) {
+    group.forEach(unit -> unit.fail(failure));
+  }
+
+  /**
+   * Notifies the listener about the completed commit.
+   * The group is already completed, so failures are only logged and never fail the units.
+   */
+  void afterCommit(final long state, final boolean committed) {
+    try {
+      this.getListener().afterCommit(state, committed);
+    } catch (final RuntimeException ex) {
+      CommitPipeline.LOG.error("Transaction listener failed after the commit of the group, the cause error follows.", ex);
+    }
+  }
+
+  void endUnitOfWork() {
+    try {
+      this.getResources().endUnitOfWork();
+    } catch (final RuntimeException ex) {
+      CommitPipeline.LOG.error("Failed to release resources of the commit pipeline, the cause error follows.", ex);
+    }
+  }
+
+  void rollback() {
+    try {
+      int tmStatus = this.getTM().getStatus();
+      if (tmStatus != Status.STATUS_NO_TRANSACTION) {
+        this.getTM().rollback();
+      }
+    } catch (final IllegalStateException | SecurityException | SystemException ex) {
+      CommitPipeline.LOG.error("Failed to rollback the failed group, the cause error follows.", ex);
+    }
+  }
+
+  /**
+   * A unit of work with its future.
+   * Keeps the result of the last execution until its transaction completes.
+   */
+  static class Unit<T> {
+    private final Callable<T> callable;
+
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    public CompletableFuture<T> getFuture() {return this.future;}
+
+    private T result;
+
+    Unit(final Callable<T> callable) {
+      this.callable = callable;
+    }
+
+    void call() throws Exception {
+      this.result = this.callable.call();
+    }
+
+    void complete() {
+      this.future.complete(this.result);
+    }
+
+    void fail(final Throwable failure) {
+      this.future.completeExceptionally(failure);
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package net.ofk.integration.cdi.jta;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks transactional methods which should not start a transaction until they use an entity manager.
+ * If there is no transaction associated with the thread the transaction interceptor
+ * defers the start of the new transaction till the first call of a delegating entity manager,
+ * entity managers the thread already has are joined to the transaction then.
+ * If the method doesn't use any entity manager no transaction is started at all.
+ * Nested transactional methods start the deferred transaction and join it.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Inherited
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface DeferredBegin {
+}
@@ -0,0 +1,79 @@
+package net.ofk.integration.cdi.jta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.PersistenceException;
+
+/**
+ * Holds a transaction which should be started in the current thread
+ * only when an entity manager is used for the first time.
+ * Until then no entity manager joins the transaction and no pooled connection is enlisted,
+ * so the connection pool isn't held by the code preceding the first database access.
+ * The interceptors defer the transaction, the {@link TransactionResources} start it when they are used.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public final class PendingTransaction {
+  private static final Logger LOG = LoggerFactory.getLogger(PendingTransaction.class);
+
+  private static final ThreadLocal<PendingTransaction.Begin> PENDING = new ThreadLocal<>();
+
+  private PendingTransaction() {
+  }
+
+  /**
+   * Registers a transaction to be started on the first use of an entity manager in the current thread.
+   *
+   * @param begin - starts the transaction and joins entity managers of the thread to it.
+   */
+  public static void defer(final PendingTransaction.Begin begin) {
+    PendingTransaction.PENDING.set(begin);
+  }
+
+  /**
+   * @return true if the current thread has a transaction which hasn't been started yet.
+   */
+  public static boolean isPending() {
+    return PendingTransaction.PENDING.get() != null;
+  }
+
+  /**
+   * Starts the pending transaction of the current thread if there is one.
+   */
+  public static void start() {
+    PendingTransaction.Begin begin = PendingTransaction.PENDING.get();
+    if (begin != null) {
+      PendingTransaction.PENDING.remove();
+
+      try {
+        begin.begin();
+      } catch (final Exception ex) {
+        throw new PersistenceException("Failed to start the deferred transaction.", ex);
+      }
+
+      PendingTransaction.LOG.debug("Started the deferred transaction.");
+    }
+  }
+
+  /**
+   * Forgets the pending transaction of the current thread.
+   *
+   * @return true if the transaction was still pending, i.e. it has never been started.
+   */
+  public static boolean cancel() {
+    boolean result = PendingTransaction.PENDING.get() != null;
+    if (result) {
+      PendingTransaction.PENDING.remove();
+    }
+    return result;
+  }
+
+  /**
+   * Starts a deferred transaction.
+   */
+  @FunctionalInterface
+  public interface Begin {
+    void begin() throws Exception;
+  }
+}
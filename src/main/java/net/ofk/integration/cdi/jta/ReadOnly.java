@@ -0,0 +1,25 @@
+package net.ofk.integration.cdi.jta;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks transactional methods which only read data.
+ * If there is no transaction associated with the thread the transaction interceptor
+ * doesn't start a new one for such a method, entity managers of the thread
+ * are switched to the commit flush mode, explicit flushes are skipped
+ * and the entity managers are cleared when the method returns.
+ * Inside an existing transaction the annotation has no effect.
+ * A transactional method without the annotation called by a read-only one
+ * leaves the read-only mode and runs in its own transaction.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Inherited
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReadOnly {
+}
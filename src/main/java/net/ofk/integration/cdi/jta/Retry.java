@@ -0,0 +1,42 @@
+package net.ofk.integration.cdi.jta;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Makes the transaction interceptor re-execute a failed transactional method.
+ * Only outermost transactions are re-executed, the method joining an existing transaction
+ * fails as usual, so the whole transaction can be retried by its initiator.
+ * A failure is retried if any exception of its cause chain is an instance of the listed exception classes.
+ * If there are no listed classes lock conflicts, deadlocks and serialization failures are retried.
+ * Between attempts the interceptor waits for an exponentially growing random delay.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Inherited
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Retry {
+  /**
+   * @return maximal number of attempts including the first one.
+   */
+  int maxAttempts() default 3;
+
+  /**
+   * @return delay in milliseconds before the second attempt.
+   */
+  long delay() default 50;
+
+  /**
+   * @return maximal delay in milliseconds between attempts.
+   */
+  long maxDelay() default 1000;
+
+  /**
+   * @return exception classes which cause retries.
+   */
+  Class<? extends Throwable>[] on() default {};
+}
@@ -0,0 +1,157 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Named;
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Admits new transactions started by the interceptors, the commit pipeline and the outbox relay.
+ * Every application has its own gate registered in the platform MBean server,
+ * so a server lifecycle bean loaded by another class loader can close the gates of all applications
+ * to let in-flight transactions finish before the transaction manager is shut down.
+ * The gate is created and registered when the application starts.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Named
+@ApplicationScoped
+public class TransactionGate implements TransactionGateMXBean {
+  private static final Logger LOG = LoggerFactory.getLogger(TransactionGate.class);
+
+  public static final String OBJECT_NAME_PREFIX = "net.ofk.integration:type=TransactionGate,id=";
+
+  private volatile boolean open = true;
+
+  private ObjectName objectName;
+  ObjectName getObjectName() {return this.objectName;}
+
+  /**
+   * Creates the gate when the application starts, so it can be closed before the first transaction.
+   */
+  void init(@Observes @Initialized(ApplicationScoped.class) final Object event) {
+    TransactionGate.LOG.debug("Transaction gate is {}.", this.isOpen() ? "open" : "closed");
+  }
+
+  @PostConstruct
+  public void register() {
+    try {
+      ObjectName name = new ObjectName(TransactionGate.OBJECT_NAME_PREFIX + Integer.toHexString(System.identityHashCode(this)));
+      TransactionGate.getMBeanServer().registerMBean(this, name);
+      this.objectName = name;
+
+      TransactionGate.LOG.debug("Registered the transaction gate {}.", name);
+    } catch (final JMException ex) {
+      TransactionGate.LOG.warn("Failed to register the transaction gate, the cause error follows.", ex);
+    }
+  }
+
+  @PreDestroy
+  public void unregister() {
+    ObjectName name = this.objectName;
+    if (name != null) {
+      try {
+        TransactionGate.getMBeanServer().unregisterMBean(name);
+        this.objectName = null;
+      } catch (final JMException ex) {
+        TransactionGate.LOG.warn("Failed to unregister the transaction gate, the cause error follows.", ex);
+      }
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return this.open;
+  }
+
+  @Override
+  public void open() {
+    this.open = true;
+  }
+
+  @Override
+  public void close() {
+    this.open = false;
+  }
+
+  /**
+   * Opens the gates of all applications registered in the platform MBean server.
+   *
+   * @return number of opened gates.
+   */
+  public static int openAll() {
+    Set<ObjectName> names = TransactionGate.queryNames();
+    names.forEach(name -> TransactionGate.getProxy(name).open());
+    return names.size();
+  }
+
+  /**
+   * Opens the given gates, gates which are not registered anymore are skipped.
+   *
+   * @param names - names of the gates returned by {@link #closeAll()}.
+   * @return number of opened gates.
+   */
+  public static int open(final Collection<ObjectName> names) {
+    int result = 0;
+
+    MBeanServer server = TransactionGate.getMBeanServer();
+    for (ObjectName name : names) {
+      if (server.isRegistered(name)) {
+        TransactionGate.getProxy(name).open();
+        result+= 1;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Closes the open gates of all applications registered in the platform MBean server.
+   *
+   * @return names of the gates which have been closed, gates which were already closed aren't included.
+   */
+  public static Set<ObjectName> closeAll() {
+    Set<ObjectName> result = Sets.newHashSet();
+
+    for (ObjectName name : TransactionGate.queryNames()) {
+      TransactionGateMXBean gate = TransactionGate.getProxy(name);
+      if (gate.isOpen()) {
+        gate.close();
+        result.add(name);
+      }
+    }
+
+    return result;
+  }
+
+  static Set<ObjectName> queryNames() {
+    try {
+      return TransactionGate.getMBeanServer().queryNames(new ObjectName(TransactionGate.OBJECT_NAME_PREFIX + '*'), null);
+    } catch (final JMException ex) {
+      TransactionGate.LOG.warn("Failed to look up transaction gates, the cause error follows.", ex);
+      return Collections.emptySet();
+    }
+  }
+
+  static TransactionGateMXBean getProxy(final ObjectName name) {
+    return JMX.newMXBeanProxy(TransactionGate.getMBeanServer(), name, TransactionGateMXBean.class);
+  }
+
+  static MBeanServer getMBeanServer() {
+    return ManagementFactory.getPlatformMBeanServer();
+  }
+}
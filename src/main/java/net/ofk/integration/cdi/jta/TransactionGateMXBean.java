@@ -0,0 +1,23 @@
+package net.ofk.integration.cdi.jta;
+
+/**
+ * Management interface of the {@link TransactionGate}.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public interface TransactionGateMXBean {
+  /**
+   * @return true if new transactions may be started.
+   */
+  boolean isOpen();
+
+  /**
+   * Allows to start new transactions.
+   */
+  void open();
+
+  /**
+   * Rejects new transactions, existing transactions and the methods joining them are not affected.
+   */
+  void close();
+}
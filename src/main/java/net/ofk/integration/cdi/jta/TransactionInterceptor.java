@@ -1,12 +1,17 @@
 package net.ofk.integration.cdi.jta;
 
+import bitronix.tm.BitronixTransaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Resource;
+import javax.inject.Inject;
 import javax.interceptor.AroundInvoke;
 import javax.interceptor.Interceptor;
 import javax.interceptor.InvocationContext;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.NotSupportedException;
@@ -16,9 +21,23 @@ import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 import javax.transaction.Transactional;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Intercepts any method invocation annotated with the {@link javax.transaction.Transactional} annotation.
+ * If the method is also annotated with the {@link Retry} annotation
+ * the failed outermost transaction is re-executed.
+ * If the method is annotated with the {@link ReadOnly} annotation
+ * and there is no transaction associated with the thread
+ * the method is executed without any transaction.
+ * If the method is annotated with the {@link DeferredBegin} annotation
+ * the new transaction is started when an entity manager is used for the first time.
+ * The {@link TransactionListener} is notified when intercepted methods are entered and left
+ * and when outermost transactions begin, commit and roll back,
+ * e.g. to publish keys of the entities changed by a committed transaction.
  *
  * @author Konstantin I. key.offecka@runbox.com
  */
@@ -27,32 +46,157 @@ import javax.transaction.Transactional;
 public class TransactionInterceptor {
   private static final Logger LOG = LoggerFactory.getLogger(TransactionInterceptor.class);
 
+  /**
+   * SQL states of serialization failures and deadlocks.
+   */
+  private static final String[] RETRYABLE_SQL_STATES = {"40001", "40P01"};
+
   @Resource(name="TransactionManager")
   public TransactionManager tm;
   TransactionManager getTM() {return this.tm;}
 
+  @Inject
+  public TransactionResources resources;
+  TransactionResources getResources() {return this.resources;}
+
+  @Inject
+  public TransactionGate gate;
+  TransactionGate getGate() {return this.gate;}
+
+  @Inject
+  public TransactionStatistics statistics;
+  TransactionStatistics getStatistics() {return this.statistics;}
+
+  @Inject
+  public TransactionListener listener;
+  TransactionListener getListener() {return this.listener;}
+
   @AroundInvoke
   public Object intercept(final InvocationContext invocationContext) throws Exception {
     Object result = null;
 
-    Transaction tx = this.begin();
-
+    Method method = invocationContext.getMethod();
+    Object state = this.getListener().enter(method);
     try {
+      boolean readOnly = this.isReadOnly(method);
+      if (readOnly && this.getTM().getTransaction() == null && !PendingTransaction.isPending()) {
+        result = this.read(invocationContext);
+      } else if (!readOnly && this.getResources().isReadOnly(Thread.currentThread())) {
+        result = this.write(invocationContext);
+      } else {
+        result = this.execute(invocationContext, this.isDeferred(method));
+      }
+    } finally {
+      this.getListener().exit(state);
+    }
+
+    return result;
+  }
+
+  /**
+   * Executes the method switching entity managers of the thread into the read-only mode
+   * unless they are already in it.
+   */
+  Object read(final InvocationContext invocationContext) throws Exception {
+    Object result = null;
+
+    Thread thread = Thread.currentThread();
+    if (this.getResources().isReadOnly(thread)) {
       result = invocationContext.proceed();
+    } else {
+      TransactionInterceptor.LOG.debug("Reading without a transaction.");
+
+      this.getResources().setReadOnly(thread, true);
+      try {
+        result = invocationContext.proceed();
+      } finally {
+        this.getResources().setReadOnly(thread, false);
+        this.getResources().clear(thread);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Executes a writing method called by a read-only one in a new transaction.
+   * Entity managers of the thread leave the read-only mode, so changes of the method are flushed,
+   * and the transaction is deferred, so the entity managers created by the read-only caller
+   * are joined to it when they are used.
+   * The read-only mode is restored when the method returns.
+   */
+  Object write(final InvocationContext invocationContext) throws Exception {
+    Object result = null;
 
-      this.commit(tx);
-    } catch (final Throwable th) {
-      this.rollback(tx);
+    TransactionInterceptor.LOG.debug("Leaving the read-only mode for a nested transaction.");
 
-      throw th;
+    Thread thread = Thread.currentThread();
+    this.getResources().setReadOnly(thread, false);
+    try {
+      result = this.execute(invocationContext, true);
+    } finally {
+      this.getResources().setReadOnly(thread, true);
+    }
+
+    return result;
+  }
+
+  /**
+   * Executes the method in a transaction.
+   *
+   * @param deferred - true if the new transaction should be started on the first use of an entity manager.
+   */
+  Object execute(final InvocationContext invocationContext, final boolean deferred) throws Exception {
+    Object result = null;
+
+    Retry retry = this.getRetry(invocationContext.getMethod());
+    int attempt = 1;
+    boolean done = false;
+
+    while (!done) {
+      Transaction tx = deferred ? this.defer() : this.begin();
+      if (tx == null) {
+        this.getListener().begun();
+      }
+
+      try {
+        result = invocationContext.proceed();
+
+        this.commit(tx);
+
+        done = true;
+      } catch (final Throwable th) {
+        this.rollback(tx);
+
+        if (tx != null || retry == null || !this.isRetryable(retry, th)) {
+          throw th;
+        }
+        if (attempt >= retry.maxAttempts()) {
+          this.getStatistics().exhausted();
+
+          throw th;
+        }
+
+        this.getResources().clear(Thread.currentThread());
+        this.getStatistics().retried();
+
+        long delay = this.getDelay(retry, attempt);
+        TransactionInterceptor.LOG.debug("Transaction failed, retrying in {} ms.", delay);
+        this.sleep(delay);
+
+        attempt+= 1;
+      }
     }
 
     return result;
   }
 
   Transaction begin() throws SystemException, NotSupportedException {
+    PendingTransaction.start();
+
     Transaction tx = this.getTM().getTransaction();
     if (tx == null) {
+      this.checkGate();
       this.getTM().begin();
 
       TransactionInterceptor.LOG.debug("Starting a new transaction.");
@@ -62,19 +206,101 @@ public class TransactionInterceptor {
     return tx;
   }
 
+  /**
+   * Registers a new transaction to be started on the first use of an entity manager
+   * or joins the existing one.
+   * The gate is checked when the deferred transaction is started, so a gate closed meanwhile rejects it.
+   */
+  Transaction defer() throws SystemException, NotSupportedException {
+    Transaction tx = null;
+
+    if (this.getTM().getTransaction() == null && !PendingTransaction.isPending()) {
+      Thread thread = Thread.currentThread();
+      PendingTransaction.defer(() -> {
+        this.checkGate();
+        this.getTM().begin();
+        this.getResources().joinTransaction(thread);
+      });
+
+      TransactionInterceptor.LOG.debug("Deferring a new transaction.");
+    } else {
+      tx = this.begin();
+    }
+
+    return tx;
+  }
+
+  void checkGate() throws SystemException {
+    if (!this.getGate().isOpen()) {
+      throw new SystemException("Transactions are being drained, a new transaction cannot be started.");
+    }
+  }
+
   void commit(final Transaction tx) throws RollbackException, HeuristicMixedException, HeuristicRollbackException, SystemException {
-    if (tx == null) {
-      this.getTM().commit();
+    if (tx == null && PendingTransaction.cancel()) {
+      this.getListener().rolledBack();
+
+      TransactionInterceptor.LOG.debug("Deferred transaction has never been started, nothing to commit.");
+    } else if (tx == null) {
+      int resourceCount = this.getResourceCount();
+
+      long state = this.getListener().beforeCommit();
+      boolean committed = false;
+      try {
+        this.getTM().commit();
+        committed = true;
+      } finally {
+        this.afterCommit(state, committed);
+      }
+
+      if (resourceCount >= 0) {
+        this.getStatistics().committed(resourceCount);
+      }
 
-      TransactionInterceptor.LOG.debug("Transaction has been committed successfully.");
+      if (TransactionInterceptor.LOG.isDebugEnabled()) {
+        TransactionInterceptor.LOG.debug("Transaction with {} enlisted resources has been committed successfully.", resourceCount);
+      }
     }
   }
 
+  /**
+   * Notifies the listener about the completed commit.
+   * The transaction is already completed, so failures are only logged and never reach the caller.
+   */
+  void afterCommit(final long state, final boolean committed) {
+    try {
+      this.getListener().afterCommit(state, committed);
+    } catch (final RuntimeException ex) {
+      TransactionInterceptor.LOG.error("Transaction listener failed after the commit, the cause error follows.", ex);
+    }
+  }
+
+  /**
+   * Returns the number of resources enlisted in the current transaction.
+   * The transaction manager commits a transaction with a single resource in one phase
+   * skipping the prepare phase and the two-phase commit journal records.
+   *
+   * @return number of enlisted resources or -1 if the transaction manager doesn't tell it.
+   */
+  int getResourceCount() throws SystemException {
+    int result = -1;
+
+    Transaction tx = this.getTM().getTransaction();
+    if (tx instanceof BitronixTransaction) {
+      result = ((BitronixTransaction) tx).getResourceManager().size();
+    }
+
+    return result;
+  }
+
   void rollback(final Transaction tx) {
     if (tx == null) {
+      this.getListener().rolledBack();
+    }
+    if (tx == null && !PendingTransaction.cancel()) {
       try {
-        int tmStatus = this.getTM().getTransaction().getStatus();
-        if (tmStatus == Status.STATUS_ACTIVE) {
+        Transaction current = this.getTM().getTransaction();
+        if (current != null && current.getStatus() == Status.STATUS_ACTIVE) {
           this.getTM().rollback();
 
           TransactionInterceptor.LOG.debug("Failed transaction has been rolled back successfully.");
@@ -84,4 +310,88 @@ public class TransactionInterceptor {
       }
     }
   }
+
+  /**
+   * Returns the retry settings of the method or of its class.
+   *
+   * @param method - intercepted method.
+   * @return retry settings or null if the method should not be retried.
+   */
+  Retry getRetry(final Method method) {
+    Retry retry = null;
+    if (method != null) {
+      retry = method.getAnnotation(Retry.class);
+      if (retry == null) {
+        retry = method.getDeclaringClass().getAnnotation(Retry.class);
+      }
+    }
+    return retry;
+  }
+
+  boolean isReadOnly(final Method method) {
+    boolean result = false;
+    if (method != null) {
+      result = method.isAnnotationPresent(ReadOnly.class) || method.getDeclaringClass().isAnnotationPresent(ReadOnly.class);
+    }
+    return result;
+  }
+
+  boolean isDeferred(final Method method) {
+    boolean result = false;
+    if (method != null) {
+      result = method.isAnnotationPresent(DeferredBegin.class) || method.getDeclaringClass().isAnnotationPresent(DeferredBegin.class);
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether any error of the cause chain is worth retrying.
+   */
+  boolean isRetryable(final Retry retry, final Throwable th) {
+    boolean result = false;
+
+    Throwable cause = th;
+    while (cause != null && !result) {
+      if (retry.on().length == 0) {
+        result = TransactionInterceptor.isTransient(cause);
+      } else {
+        for (Class<? extends Throwable> cls : retry.on()) {
+          result = result || cls.isInstance(cause);
+        }
+      }
+      cause = cause.getCause() == cause ? null : cause.getCause();
+    }
+
+    return result;
+  }
+
+  static boolean isTransient(final Throwable th) {
+    boolean result = th instanceof OptimisticLockException
+      || th instanceof PessimisticLockException
+      || th instanceof LockTimeoutException
+      || th instanceof SQLTransactionRollbackException;
+
+    if (!result && th instanceof SQLException) {
+      String sqlState = ((SQLException) th).getSQLState();
+      for (String retryableSQLState : TransactionInterceptor.RETRYABLE_SQL_STATES) {
+        result = result || retryableSQLState.equals(sqlState);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the delay before the next attempt,
+   * the delay doubles with every attempt and is randomized to spread concurrent retries.
+   */
+  long getDelay(final Retry retry, final int attempt) {
+    long delay = Math.min(retry.maxDelay(), retry.delay() << Math.min(attempt - 1, 30));
+    long half = delay / 2;
+    return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+  }
+
+  void sleep(final long delay) throws InterruptedException {
+    Thread.sleep(delay);
+  }
 }
@@ -0,0 +1,53 @@
+package net.ofk.integration.cdi.jta;
+
+import java.lang.reflect.Method;
+
+/**
+ * Observes transactions of the interceptors and the commit pipeline in the current thread,
+ * e.g. to capture the entities changed by a transaction and publish them once it's committed.
+ * Like {@link TransactionResources} it's a hook the interceptors call without depending on its implementation.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public interface TransactionListener {
+  /**
+   * Called when a transactional method is invoked.
+   *
+   * @param method - invoked method, null if it's unknown.
+   * @return state which is passed to {@link #exit(Object)} when the method returns.
+   */
+  Object enter(Method method);
+
+  /**
+   * Called when a transactional method returns.
+   *
+   * @param state - state returned by {@link #enter(Method)}.
+   */
+  void exit(Object state);
+
+  /**
+   * Called when a new transaction has been started or deferred in the current thread.
+   */
+  void begun();
+
+  /**
+   * Called right before the transaction of the current thread is committed.
+   *
+   * @return state which is passed to {@link #afterCommit(long, boolean)}.
+   */
+  long beforeCommit();
+
+  /**
+   * Called when the commit of the transaction of the current thread has returned or failed.
+   * The transaction is already completed, so callers only log errors of the listener.
+   *
+   * @param state - state returned by {@link #beforeCommit()}.
+   * @param committed - true if the transaction has been committed.
+   */
+  void afterCommit(long state, boolean committed);
+
+  /**
+   * Called when the transaction of the current thread has been rolled back or has never been started.
+   */
+  void rolledBack();
+}
@@ -0,0 +1,50 @@
+package net.ofk.integration.cdi.jta;
+
+/**
+ * Resources bound to threads which take part in transactions of the interceptors, e.g. entity managers.
+ * The interceptors only drive the resources through this hook and don't depend on their implementation.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public interface TransactionResources {
+  /**
+   * Detaches everything the resources of the thread hold,
+   * called before a rolled back transaction is retried.
+   *
+   * @param thread - thread associated with the resources.
+   */
+  void clear(Thread thread);
+
+  /**
+   * Joins the resources of the thread to the transaction which has just been started for the thread.
+   *
+   * @param thread - thread associated with the resources.
+   */
+  void joinTransaction(Thread thread);
+
+  /**
+   * Switches the resources of the thread into or out of the read-only mode.
+   *
+   * @param thread - thread associated with the resources.
+   * @param readOnly - true to switch the resources into the read-only mode.
+   */
+  void setReadOnly(Thread thread, boolean readOnly);
+
+  /**
+   * @param thread - thread associated with the resources.
+   * @return true if the resources of the thread are in the read-only mode.
+   */
+  boolean isReadOnly(Thread thread);
+
+  /**
+   * Starts a unit of work in the current thread which doesn't serve any request,
+   * e.g. a worker of the commit pipeline.
+   */
+  void beginUnitOfWork();
+
+  /**
+   * Ends the unit of work of the current thread releasing the resources acquired within it
+   * and clears the resources of the thread which are still held.
+   */
+  void endUnitOfWork();
+}
@@ -0,0 +1,62 @@
+package net.ofk.integration.cdi.jta;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Named;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what happens to the transactions started by the transaction interceptor.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+@Named
+@ApplicationScoped
+public class TransactionStatistics {
+  private final AtomicLong retries = new AtomicLong();
+  /**
+   * @return number of re-executed transactions.
+   */
+  public long getRetries() {return this.retries.get();}
+
+  private final AtomicLong exhaustedRetries = new AtomicLong();
+  /**
+   * @return number of transactions which failed after the last attempt.
+   */
+  public long getExhaustedRetries() {return this.exhaustedRetries.get();}
+
+  private final AtomicLong emptyCommits = new AtomicLong();
+  /**
+   * @return number of committed transactions without enlisted resources.
+   */
+  public long getEmptyCommits() {return this.emptyCommits.get();}
+
+  private final AtomicLong onePhaseCommits = new AtomicLong();
+  /**
+   * @return number of committed transactions with a single enlisted resource.
+   */
+  public long getOnePhaseCommits() {return this.onePhaseCommits.get();}
+
+  private final AtomicLong twoPhaseCommits = new AtomicLong();
+  /**
+   * @return number of committed transactions with several enlisted resources.
+   */
+  public long getTwoPhaseCommits() {return this.twoPhaseCommits.get();}
+
+  void committed(final int resourceCount) {
+    if (resourceCount == 0) {
+      this.emptyCommits.incrementAndGet();
+    } else if (resourceCount == 1) {
+      this.onePhaseCommits.incrementAndGet();
+    } else {
+      this.twoPhaseCommits.incrementAndGet();
+    }
+  }
+
+  void retried() {
+    this.retries.incrementAndGet();
+  }
+
+  void exhausted() {
+    this.exhaustedRetries.incrementAndGet();
+  }
+}
@@ -0,0 +1,82 @@
+package net.ofk.integration.jetty.bitronix;
+
+import bitronix.tm.journal.Journal;
+import bitronix.tm.journal.TransactionLogRecord;
+import bitronix.tm.utils.Uid;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import javax.transaction.Status;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bitronix journal which keeps records in memory.
+ * Only the records of transactions which are being committed are kept,
+ * so the journal never grows and nothing touches the disk.
+ * The records are lost when the process exits, therefore the journal
+ * should be used only for tests and benchmarks where recovery after a crash doesn't matter.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class MemoryJournal implements Journal {
+  /**
+   * Journal name accepted by the lifecycle bean.
+   */
+  public static final String NAME = "memory";
+
+  private final Map<Uid, Set<String>> danglingRecords = Maps.newHashMap();
+  Map<Uid, Set<String>> getDanglingRecords() {return this.danglingRecords;}
+
+  @Override
+  public void log(final int status, final Uid gtrid, final Set<String> uniqueNames) {
+    synchronized (this.getDanglingRecords()) {
+      if (status == Status.STATUS_COMMITTING) {
+        this.getDanglingRecords().put(gtrid, Sets.newHashSet(uniqueNames));
+      } else if (status == Status.STATUS_COMMITTED || status == Status.STATUS_UNKNOWN) {
+        Set<String> names = this.getDanglingRecords().get(gtrid);
+        if (names != null) {
+          names.removeAll(uniqueNames);
+          if (names.isEmpty()) {
+            this.getDanglingRecords().remove(gtrid);
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void open() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public void force() {
+  }
+
+  @Override
+  public Map<Uid, TransactionLogRecord> collectDanglingRecords() {
+    Map<Uid, TransactionLogRecord> result = Maps.newHashMap();
+
+    synchronized (this.getDanglingRecords()) {
+      this.getDanglingRecords().forEach((gtrid, names) -> result.put(gtrid, new TransactionLogRecord(Status.STATUS_COMMITTING, gtrid, Sets.newHashSet(names))));
+    }
+
+    return result;
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (this.getDanglingRecords()) {
+      this.getDanglingRecords().clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "a MemoryJournal";
+  }
+}
@@ -1,27 +1,291 @@
 package net.ofk.integration.jetty.bitronix;
 
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
-import bitronix.tm.utils.Service;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import net.ofk.integration.cdi.jta.TransactionGate;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
 
+import javax.management.ObjectName;
+import java.util.Set;
+
 /**
  * Jetty lifecycle bean.
  * Starts and shuts down the Bitronix transaction manager.
+ * Properties which are not set keep the values of the Bitronix configuration
+ * or the values of the selected profile.
+ * If the drain timeout is set, on shutdown the bean closes the transaction gates of all applications
+ * (they are reached through the platform MBean server) and waits until in-flight transactions finish or the timeout expires.
+ * When the bean is started again it reopens only the gates it has closed, gates closed over JMX stay closed.
+ * If the recovery is done in background the transaction manager is started
+ * (and its resources are recovered) in a separate thread letting the server start,
+ * callers of the transaction manager wait until the recovery is finished.
  *
  * @author Konstantin I. key.offecka@runbox.com
  */
 public class TransactionManagerLifeCycle extends AbstractLifeCycle {
+  /**
+   * Profile which batches disk forces of concurrent transactions,
+   * executes two-phase commits on resources in parallel
+   * and keeps only the journal records needed for recovery.
+   */
+  public static final String HIGH_THROUGHPUT_PROFILE = "high-throughput";
+
+  private String profile;
+  public String getProfile() {return this.profile;}
+  public void setProfile(final String profile) {this.profile = profile;}
+
+  private String journal;
+  public String getJournal() {return this.journal;}
+  /**
+   * Sets the journal implementation: disk, null, memory (see {@link MemoryJournal}) or a class name.
+   */
+  public void setJournal(final String journal) {this.journal = journal;}
+
+  private Boolean forcedWriteEnabled;
+  public Boolean getForcedWriteEnabled() {return this.forcedWriteEnabled;}
+  public void setForcedWriteEnabled(final Boolean forcedWriteEnabled) {this.forcedWriteEnabled = forcedWriteEnabled;}
+
+  private Boolean forceBatchingEnabled;
+  public Boolean getForceBatchingEnabled() {return this.forceBatchingEnabled;}
+  public void setForceBatchingEnabled(final Boolean forceBatchingEnabled) {this.forceBatchingEnabled = forceBatchingEnabled;}
+
+  private Boolean asynchronous2Pc;
+  public Boolean getAsynchronous2Pc() {return this.asynchronous2Pc;}
+  public void setAsynchronous2Pc(final Boolean asynchronous2Pc) {this.asynchronous2Pc = asynchronous2Pc;}
+
+  private Integer backgroundRecoveryIntervalSeconds;
+  public Integer getBackgroundRecoveryIntervalSeconds() {return this.backgroundRecoveryIntervalSeconds;}
+  public void setBackgroundRecoveryIntervalSeconds(final Integer backgroundRecoveryIntervalSeconds) {this.backgroundRecoveryIntervalSeconds = backgroundRecoveryIntervalSeconds;}
+
+  private Boolean filterLogStatus;
+  public Boolean getFilterLogStatus() {return this.filterLogStatus;}
+  /**
+   * Makes the journal keep only the mandatory transaction statuses.
+   * Transactions with a single resource are committed in one phase by Bitronix,
+   * with this option they write no more than the records needed for recovery.
+   */
+  public void setFilterLogStatus(final Boolean filterLogStatus) {this.filterLogStatus = filterLogStatus;}
+
+  private Integer drainTimeout;
+  public Integer getDrainTimeout() {return this.drainTimeout;}
+  /**
+   * Sets how many seconds to wait for in-flight transactions on shutdown.
+   * The Bitronix graceful shutdown interval is disabled then, since the bean does the waiting.
+   */
+  public void setDrainTimeout(final Integer drainTimeout) {this.drainTimeout = drainTimeout;}
+
+  private boolean recoverInBackground;
+  public boolean isRecoverInBackground() {return this.recoverInBackground;}
+  public void setRecoverInBackground(final boolean recoverInBackground) {this.recoverInBackground = recoverInBackground;}
+
+  private volatile Thread starter;
+
+  private volatile Set<ObjectName> closedGates = ImmutableSet.of();
+  Set<ObjectName> getClosedGates() {return this.closedGates;}
+
+  private volatile Throwable startupFailure;
+  /**
+   * @return error which prevented the transaction manager from the start.
+   */
+  public Throwable getStartupFailure() {return this.startupFailure;}
+
+  /**
+   * @return true if the transaction manager is being started and recovered in background.
+   */
+  public boolean isRecovering() {
+    Thread thread = this.starter;
+    return thread != null && thread.isAlive();
+  }
+
+  public int getRecoveryExecutionCount() {
+    return TransactionManagerServices.getRecoverer().getExecutionsCount();
+  }
+
+  public int getRecoveryCommittedCount() {
+    return TransactionManagerServices.getRecoverer().getCommittedCount();
+  }
+
+  public int getRecoveryRolledbackCount() {
+    return TransactionManagerServices.getRecoverer().getRolledbackCount();
+  }
+
   protected void doStart() throws Exception {
-    TransactionManagerServices.getTransactionManager();
+    this.configure(TransactionManagerServices.getConfiguration());
+
+    this.startupFailure = null;
+    if (this.recoverInBackground) {
+      this.startInBackground();
+    } else {
+      try {
+        this.startTransactionManager();
+      } catch (final Throwable th) {
+        this.startupFailure = th;
+        throw th;
+      }
+    }
+  }
+
+  void startInBackground() {
+    this.startupFailure = null;
+    this.starter = new Thread(() -> {
+      try {
+        this.startTransactionManager();
+      } catch (final Throwable th) {
+        this.startupFailure = th;
+
+        Log.getLog().warn("Failed to start the transaction manager", th);
+      }
+    }, "transaction-manager-starter");
+    this.starter.setDaemon(true);
+    this.starter.start();
+
+    Log.getLog().info("Transaction manager is being started in background");
+  }
+
+  /**
+   * Starts the transaction manager, the initial recovery is done during the start.
+   */
+  void startTransactionManager() {
+    this.getTM();
+
+    Set<ObjectName> gates = this.closedGates;
+    if (!gates.isEmpty()) {
+      int count = TransactionGate.open(gates);
+      this.closedGates = ImmutableSet.of();
+
+      Log.getLog().info("Opened {} transaction gates", count);
+    }
 
     Log.getLog().info("Transaction manager has been successfully started");
   }
 
+  /**
+   * Drains and shuts the transaction manager down.
+   * If it failed to start it's not touched, since getting it would start it and run the recovery again.
+   */
   protected void doStop() throws Exception {
-    Service service = TransactionManagerServices.getTransactionManager();
-    service.shutdown();
+    this.awaitStart();
+
+    if (this.startupFailure != null) {
+      Log.getLog().info("Transaction manager failed to start, it's not shut down");
+      return;
+    }
+
+    BitronixTransactionManager tm = this.getTM();
+    if (this.drainTimeout != null) {
+      this.closedGates = ImmutableSet.copyOf(TransactionGate.closeAll());
+      Log.getLog().info("Closed {} transaction gates", this.closedGates.size());
+
+      this.drain(tm);
+    }
+    tm.shutdown();
 
     Log.getLog().info("Transaction manager has been successfully shut down");
   }
+
+  /**
+   * Waits until there are no in-flight transactions or the drain timeout expires.
+   * Transactions which are still in flight after the timeout are reported.
+   *
+   * @param tm - transaction manager to drain.
+   */
+  void drain(final BitronixTransactionManager tm) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + this.drainTimeout * 1000L;
+
+    int count = tm.getInFlightTransactions().size();
+    while (count > 0 && System.currentTimeMillis() < deadline) {
+      this.sleep(100);
+      count = tm.getInFlightTransactions().size();
+    }
+
+    if (count == 0) {
+      Log.getLog().info("All in-flight transactions have been finished");
+    } else {
+      Log.getLog().warn("{} transactions are still in flight after {} seconds of draining", count, this.drainTimeout);
+      for (Object tx : tm.getInFlightTransactions().values()) {
+        Log.getLog().warn("In-flight transaction: {}", tx);
+      }
+    }
+  }
+
+  /**
+   * Waits until the transaction manager started in background is ready.
+   */
+  void awaitStart() throws InterruptedException {
+    Thread thread = this.starter;
+    if (thread != null) {
+      thread.join();
+      this.starter = null;
+    }
+  }
+
+  BitronixTransactionManager getTM() {
+    return TransactionManagerServices.getTransactionManager();
+  }
+
+  void sleep(final long millis) throws InterruptedException {
+    Thread.sleep(millis);
+  }
+
+  /**
+   * Applies the profile and the properties of the bean to the configuration of the transaction manager
+   * which is not started yet, validates and logs the effective configuration.
+   *
+   * @param configuration - configuration of the transaction manager.
+   */
+  void configure(final Configuration configuration) {
+    if (this.profile != null) {
+      Preconditions.checkArgument(TransactionManagerLifeCycle.HIGH_THROUGHPUT_PROFILE.equals(this.profile), "Unknown transaction manager profile %s.", this.profile);
+
+      configuration.setForceBatchingEnabled(true);
+      configuration.setAsynchronous2Pc(true);
+      configuration.setFilterLogStatus(true);
+    }
+
+    if (this.journal != null) {
+      configuration.setJournal(MemoryJournal.NAME.equals(this.journal) ? MemoryJournal.class.getName() : this.journal);
+    }
+    if (this.forcedWriteEnabled != null) {
+      configuration.setForcedWriteEnabled(this.forcedWriteEnabled);
+    }
+    if (this.forceBatchingEnabled != null) {
+      configuration.setForceBatchingEnabled(this.forceBatchingEnabled);
+    }
+    if (this.asynchronous2Pc != null) {
+      configuration.setAsynchronous2Pc(this.asynchronous2Pc);
+    }
+    if (this.backgroundRecoveryIntervalSeconds != null) {
+      configuration.setBackgroundRecoveryIntervalSeconds(this.backgroundRecoveryIntervalSeconds);
+    }
+    if (this.filterLogStatus != null) {
+      configuration.setFilterLogStatus(this.filterLogStatus);
+    }
+    if (this.drainTimeout != null) {
+      Preconditions.checkArgument(this.drainTimeout >= 0, "Drain timeout must not be negative.");
+
+      configuration.setGracefulShutdownInterval(0);
+    }
+
+    this.validate(configuration);
+  }
+
+  void validate(final Configuration configuration) {
+    Preconditions.checkArgument(configuration.getBackgroundRecoveryIntervalSeconds() > 0, "Background recovery interval must be positive.");
+
+    if ("disk".equals(configuration.getJournal()) && !configuration.isForcedWriteEnabled()) {
+      Log.getLog().warn("Journal disk forces are disabled, committed transactions may be lost on a crash");
+    }
+
+    Log.getLog().info("Transaction manager configuration: journal={}, forcedWriteEnabled={}, forceBatchingEnabled={}, asynchronous2Pc={}, backgroundRecoveryIntervalSeconds={}, filterLogStatus={}",
+      configuration.getJournal(),
+      configuration.isForcedWriteEnabled(),
+      configuration.isForceBatchingEnabled(),
+      configuration.isAsynchronous2Pc(),
+      configuration.getBackgroundRecoveryIntervalSeconds(),
+      configuration.isFilterLogStatus());
+  }
 }
@@ -0,0 +1,207 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Acquires, uses and releases entity managers from many threads in random order
+ * while factories of other persistence units are created and evicted (only one factory is cached),
+ * checks that neither an entity manager nor its factory is closed while it's referenced
+ * and that all entity managers are closed exactly once in the end.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class EntityManagerFactoryStoreStressTest {
+  private static final String PU_NAME = "stressPU";
+  private static final String OWN_PU_NAME = "ownPU";
+  private static final String OTHER_PU_NAME = "otherPU";
+  private static final int THREAD_COUNT = 8;
+
+  private final Queue<AtomicInteger> closeCounts = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  private EntityManagerFactoryStore store;
+  private DelegatingEntityManager em;
+
+  @Before
+  public void setUp() {
+    this.store = new EntityManagerFactoryStore() {
+      @Override
+      EntityManagerFactory createEMF(final String puName) {
+        return EntityManagerFactoryStoreStressTest.this.createEMF();
+      }
+    };
+    this.store.setMaxFactories(1);
+    this.em = new DelegatingEntityManager(EntityManagerFactoryStoreStressTest.PU_NAME, this.store);
+  }
+
+  /**
+   * Creates an entity manager factory which can be closed only once and creates counting entity managers.
+   */
+  EntityManagerFactory createEMF() {
+    AtomicInteger closeCount = new AtomicInteger();
+
+    return (EntityManagerFactory) Proxy.newProxyInstance(EntityManagerFactory.class.getClassLoader(), new Class<?>[] {EntityManagerFactory.class}, (proxy, method, args) -> {
+      Object result = null;
+      if ("createEntityManager".equals(method.getName())) {
+        result = this.createEM((EntityManagerFactory) proxy);
+      } else if ("close".equals(method.getName())) {
+        if (closeCount.incrementAndGet() > 1) {
+          throw new IllegalStateException("Entity manager factory has been closed twice.");
+        }
+      } else if ("isOpen".equals(method.getName())) {
+        result = closeCount.get() == 0;
+      } else if ("hashCode".equals(method.getName())) {
+        result = System.identityHashCode(proxy);
+      } else if ("equals".equals(method.getName())) {
+        result = proxy == args[0];
+      }
+      return result;
+    });
+  }
+
+  /**
+   * Creates an entity manager which counts how many times it's closed.
+   */
+  EntityManager createEM(final EntityManagerFactory emf) {
+    AtomicInteger closeCount = new AtomicInteger();
+    this.closeCounts.add(closeCount);
+
+    return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[] {EntityManager.class}, (proxy, method, args) -> {
+      Object result = null;
+      if ("close".equals(method.getName())) {
+        if (closeCount.incrementAndGet() > 1) {
+          throw new IllegalStateException("Entity manager has been closed twice.");
+        }
+      } else if ("isOpen".equals(method.getName())) {
+        result = closeCount.get() == 0;
+      } else if ("getEntityManagerFactory".equals(method.getName())) {
+        result = emf;
+      } else if ("hashCode".equals(method.getName())) {
+        result = System.identityHashCode(proxy);
+      } else if ("equals".equals(method.getName())) {
+        result = proxy == args[0];
+      }
+      return result;
+    });
+  }
+
+  @Test
+  public void testAcquireRelease() throws Exception {
+    int iterations = Integer.getInteger("stress.iterations", 100000);
+    CyclicBarrier barrier = new CyclicBarrier(EntityManagerFactoryStoreStressTest.THREAD_COUNT);
+
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < EntityManagerFactoryStoreStressTest.THREAD_COUNT; i++) {
+      long seed = i;
+      Thread thread = new Thread(() -> {
+        try {
+          barrier.await();
+          this.run(new Random(seed), iterations);
+        } catch (final Throwable th) {
+          this.failure.compareAndSet(null, th);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (this.failure.get() != null) {
+      throw new AssertionError(this.failure.get());
+    }
+
+    this.em.close();
+
+    Assert.assertTrue(this.store.getContextMap().isEmpty());
+    Assert.assertFalse(this.closeCounts.isEmpty());
+    for (AtomicInteger closeCount : this.closeCounts) {
+      Assert.assertEquals(1, closeCount.get());
+    }
+  }
+
+  /**
+   * Randomly acquires, uses and releases the entity manager of the current thread
+   * directly, through the delegating entity manager which is closed from time to time by any thread
+   * or through the own delegating entity manager of the thread, which also hands out its factory
+   * and whose persistence unit isn't used by other threads, so only its references keep the factory cached.
+   * Factories of other persistence units are created and evicted meanwhile.
+   * Releases all held references in the end.
+   */
+  void run(final Random random, final int iterations) {
+    Thread thread = Thread.currentThread();
+    DelegatingEntityManager own = new DelegatingEntityManager(EntityManagerFactoryStoreStressTest.OWN_PU_NAME + thread.getId(), this.store);
+    EntityManager held = null;
+    EntityManager ownEM = null;
+    EntityManagerFactory ownEMF = null;
+    int count = 0;
+
+    for (int i = 0; i < iterations; i++) {
+      int op = random.nextInt(100);
+      if (op < 25) {
+        EntityManager acquired = this.store.acquire(EntityManagerFactoryStoreStressTest.PU_NAME, thread);
+        Assert.assertTrue(acquired.isOpen());
+        Assert.assertTrue(held == null || held == acquired);
+        held = acquired;
+        count+= 1;
+      } else if (op < 50) {
+        if (count > 0) {
+          this.store.release(EntityManagerFactoryStoreStressTest.PU_NAME, thread);
+          count-= 1;
+          if (count == 0) {
+            held = null;
+          }
+        }
+      } else if (op < 65) {
+        EntityManager delegate = this.em.getEM();
+        Assert.assertTrue(held == null || held == delegate);
+      } else if (op < 80) {
+        ownEM = own.getEM();
+      } else if (op < 85) {
+        ownEMF = own.getEntityManagerFactory();
+      } else if (op < 88) {
+        own.close();
+        ownEM = null;
+        ownEMF = null;
+      } else if (op < 94) {
+        this.store.getEMF(EntityManagerFactoryStoreStressTest.OTHER_PU_NAME + random.nextInt(4));
+      } else if (op < 97) {
+        this.store.evict();
+      } else {
+        this.em.close();
+      }
+
+      if (held != null) {
+        Assert.assertTrue(held.isOpen());
+        Assert.assertTrue(held.getEntityManagerFactory().isOpen());
+      }
+      if (ownEM != null) {
+        Assert.assertTrue(ownEM.isOpen());
+        Assert.assertTrue(ownEM.getEntityManagerFactory().isOpen());
+      }
+      if (ownEMF != null) {
+        Assert.assertTrue(ownEMF.isOpen());
+      }
+    }
+
+    own.close();
+    for (; count > 0; count--) {
+      this.store.release(EntityManagerFactoryStoreStressTest.PU_NAME, thread);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.sun.management.ThreadMXBean;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that a steady-state find() through the delegating entity manager
+ * inside a transactional method joining an existing transaction allocates nothing.
+ * Runs the path of {@link FindBenchmark} until it's compiled and measures the bytes allocated by the current thread,
+ * the smallest of several rounds is taken so a single deoptimization or a profiling sample doesn't fail the test.
+ *
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class FindAllocationTest {
+  private static final int WARMUP_ITERATIONS = 200000;
+  private static final int ITERATIONS = 100000;
+  private static final int ROUNDS = 5;
+
+  private ThreadMXBean threads;
+  private FindBenchmark benchmark;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean);
+
+    this.threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(this.threads.isThreadAllocatedMemorySupported());
+    this.threads.setThreadAllocatedMemoryEnabled(true);
+
+    this.benchmark = new FindBenchmark();
+    this.benchmark.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.benchmark != null) {
+      this.benchmark.tearDown();
+    }
+  }
+
+  @Test
+  public void testFindAllocatesNothing() throws Exception {
+    long threadId = Thread.currentThread().getId();
+
+    for (int i = 0; i < FindAllocationTest.WARMUP_ITERATIONS; i++) {
+      this.benchmark.find();
+    }
+
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < FindAllocationTest.ROUNDS; round++) {
+      long before = this.threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < FindAllocationTest.ITERATIONS; i++) {
+        this.benchmark.find();
+      }
+      allocated = Math.min(allocated, this.threads.getThreadAllocatedBytes(threadId) - before);
+    }
+
+    // a few bytes may come from the measurement itself, but not a byte per call
+    Assert.assertTrue("find() has allocated " + allocated + " bytes in " + FindAllocationTest.ITERATIONS + " calls.",
+      allocated < FindAllocationTest.ITERATIONS);
+  }
+}
@@ -0,0 +1,148 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class BulkWriterTest {
+  private EntityManager em;
+  private EntityManager target;
+
+  @Before
+  public void setUp() {
+    this.em = Mockito.mock(EntityManager.class);
+    this.target = Mockito.mock(EntityManager.class);
+    Mockito.doReturn(this.target).when(this.em).unwrap(EntityManager.class);
+  }
+
+  @Test
+  public void testPersistBatches() {
+    BulkWriter writer = new BulkWriter(this.em, 4);
+
+    long result = writer.persist(ImmutableList.of("a", "b", 1, 2, "c").iterator());
+
+    Assert.assertEquals(5, result);
+
+    InOrder inOrder = Mockito.inOrder(this.target);
+    inOrder.verify(this.target).persist("a");
+    inOrder.verify(this.target).persist("b");
+    inOrder.verify(this.target).persist(1);
+    inOrder.verify(this.target).persist(2);
+    inOrder.verify(this.target).flush();
+    inOrder.verify(this.target).clear();
+    inOrder.verify(this.target).persist("c");
+    inOrder.verify(this.target).flush();
+    inOrder.verify(this.target).clear();
+
+    Mockito.verify(this.em, Mockito.never()).persist(Matchers.anyObject());
+  }
+
+  /**
+   * A child referencing an existing parent, a new parent and its child must be inserted in this order.
+   */
+  @Test
+  public void testPersistKeepsForeignKeyOrder() {
+    BulkWriter writer = new BulkWriter(this.em, 10);
+
+    Parent p1 = new Parent();
+    Child c0 = new Child(null);
+    Child c1 = new Child(p1);
+
+    long result = writer.persist(ImmutableList.of(c0, p1, c1).iterator());
+
+    Assert.assertEquals(3, result);
+
+    InOrder inOrder = Mockito.inOrder(this.target);
+    inOrder.verify(this.target).persist(c0);
+    inOrder.verify(this.target).persist(p1);
+    inOrder.verify(this.target).persist(c1);
+    inOrder.verify(this.target).flush();
+    inOrder.verify(this.target).clear();
+  }
+
+  @Test
+  public void testPersistClosesStream() {
+    BulkWriter writer = new BulkWriter(this.em);
+    AtomicBoolean closed = new AtomicBoolean();
+
+    long result = writer.persist(ImmutableList.of("a", "b").stream().onClose(() -> closed.set(true)));
+
+    Assert.assertEquals(2, result);
+    Assert.assertTrue(closed.get());
+  }
+
+  @Test
+  public void testMerge() {
+    BulkWriter writer = new BulkWriter(this.em, 2);
+
+    long result = writer.merge(ImmutableList.of("a", "b").stream());
+
+    Assert.assertEquals(2, result);
+
+    Mockito.verify(this.target).merge("a");
+    Mockito.verify(this.target).merge("b");
+    Mockito.verify(this.target).flush();
+    Mockito.verify(this.target, Mockito.never()).persist(Matchers.anyObject());
+  }
+
+  @Test
+  public void testRecordChanges() {
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+    PersistenceUnitUtil util = Mockito.mock(PersistenceUnitUtil.class);
+    Parent p1 = new Parent();
+    Parent p2 = new Parent();
+    Mockito.doReturn(emf).when(this.target).getEntityManagerFactory();
+    Mockito.doReturn(util).when(emf).getPersistenceUnitUtil();
+    Mockito.doReturn(p2).when(this.target).merge(p1);
+    Mockito.doReturn(1L).when(util).getIdentifier(p2);
+
+    BulkWriter writer = new BulkWriter(this.em);
+
+    EntityChanges.start();
+    try {
+      writer.merge(ImmutableList.of(p1).iterator());
+    } finally {
+      Assert.assertEquals(ImmutableSet.of(new EntityKey(Parent.class.getName(), 1L)), EntityChanges.take());
+    }
+
+    InOrder inOrder = Mockito.inOrder(this.target, util);
+    inOrder.verify(this.target).flush();
+    inOrder.verify(util).getIdentifier(p2);
+    inOrder.verify(this.target).clear();
+  }
+
+  @Test
+  public void testEmptySource() {
+    BulkWriter writer = new BulkWriter(this.em);
+
+    long result = writer.persist(ImmutableList.of().iterator());
+
+    Assert.assertEquals(0, result);
+
+    Mockito.verify(this.target, Mockito.never()).flush();
+  }
+
+  private static class Parent {
+  }
+
+  private static class Child {
+    private final Parent parent;
+
+    Child(final Parent parent) {
+      this.parent = parent;
+    }
+  }
+}
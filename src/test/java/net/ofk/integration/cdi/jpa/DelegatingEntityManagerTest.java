@@ -1,7 +1,9 @@
 package net.ofk.integration.cdi.jpa;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import net.ofk.integration.cdi.jta.PendingTransaction;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -9,6 +11,10 @@ import org.mockito.Matchers;
 import org.mockito.Mockito;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.metamodel.Metamodel;
 import java.util.Map;
 
 /**
@@ -85,4 +91,109 @@ public class DelegatingEntityManagerTest {
 
     Mockito.verify(this.store, Mockito.never()).acquire(Matchers.anyString(), Matchers.anyObject());
   }
+
+  @Test
+  public void testSkippedFlush() {
+    Thread t1 = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+
+    this.ems.put(t1, em1);
+
+    Mockito.doReturn(t1).when(this.em).getCurrentThread();
+    Mockito.doReturn(true).when(this.store).isReadOnly(t1);
+
+    this.em.flush();
+
+    Mockito.verify(em1, Mockito.never()).flush();
+  }
+
+  @Test
+  public void testFactoryLevelOperations() {
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+    CriteriaBuilder cb = Mockito.mock(CriteriaBuilder.class);
+    Metamodel metamodel = Mockito.mock(Metamodel.class);
+
+    Mockito.doReturn(emf).when(this.store).pin("testPU");
+    Mockito.doReturn(emf).when(this.store).getEMF("testPU");
+    Mockito.doReturn(cb).when(emf).getCriteriaBuilder();
+    Mockito.doReturn(metamodel).when(emf).getMetamodel();
+
+    Assert.assertEquals(emf, this.em.getEntityManagerFactory());
+    Assert.assertEquals(cb, this.em.getCriteriaBuilder());
+    Assert.assertEquals(metamodel, this.em.getMetamodel());
+
+    Mockito.verify(this.store, Mockito.never()).acquire(Matchers.anyString(), Matchers.anyObject());
+    Mockito.verify(this.store).pin("testPU");
+    Assert.assertTrue(this.ems.isEmpty());
+    Assert.assertFalse(this.em.isIdle());
+
+    this.em.close();
+
+    Mockito.verify(this.store).unpin("testPU");
+    Assert.assertTrue(this.em.isIdle());
+  }
+
+  @Test
+  public void testIsOpen() {
+    Thread t1 = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+
+    Mockito.doReturn(t1).when(this.em).getCurrentThread();
+
+    Assert.assertTrue(this.em.isOpen());
+    Mockito.verify(this.store, Mockito.never()).acquire(Matchers.anyString(), Matchers.anyObject());
+
+    this.ems.put(t1, em1);
+
+    Assert.assertFalse(this.em.isOpen());
+    Mockito.verify(em1).isOpen();
+  }
+
+  @Test
+  public void testGetEMStartsPendingTransaction() throws Exception {
+    Thread t1 = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+    PendingTransaction.Begin begin = Mockito.mock(PendingTransaction.Begin.class);
+
+    this.ems.put(t1, em1);
+    Mockito.doReturn(t1).when(this.em).getCurrentThread();
+
+    PendingTransaction.defer(begin);
+    try {
+      this.em.getEM();
+      this.em.getEM();
+    } finally {
+      PendingTransaction.cancel();
+    }
+
+    Mockito.verify(begin).begin();
+    Assert.assertFalse(PendingTransaction.isPending());
+  }
+
+  @Test
+  public void testRecordChanges() {
+    Thread t1 = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+    PersistenceUnitUtil util = Mockito.mock(PersistenceUnitUtil.class);
+    Object entity = new Object();
+    Object merged = new Object();
+
+    this.ems.put(t1, em1);
+    Mockito.doReturn(t1).when(this.em).getCurrentThread();
+    Mockito.doReturn(emf).when(em1).getEntityManagerFactory();
+    Mockito.doReturn(util).when(emf).getPersistenceUnitUtil();
+    Mockito.doReturn(merged).when(em1).merge(entity);
+    Mockito.doReturn(1L).when(util).getIdentifier(merged);
+
+    this.em.merge(entity);
+    Mockito.verify(emf, Mockito.never()).getPersistenceUnitUtil();
+
+    EntityChanges.start();
+    try {
+      Assert.assertSame(merged, this.em.merge(entity));
+    } finally {
+      Assert.assertEquals(ImmutableSet.of(new EntityKey(Object.class.getName(), 1L)), EntityChanges.take());
+    }
+  }
 }
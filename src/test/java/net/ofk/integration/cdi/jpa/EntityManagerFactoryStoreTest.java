@@ -1,16 +1,26 @@
 package net.ofk.integration.cdi.jpa;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Konstantin I. key.offecka@runbox.com
@@ -197,4 +207,302 @@ public class EntityManagerFactoryStoreTest {
 
     Assert.assertEquals(0, this.map.size());
   }
+
+  @Test
+  public void testClear() {
+    Thread thread1 = Mockito.mock(Thread.class);
+    Thread thread2 = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+    EntityManager em2 = Mockito.mock(EntityManager.class);
+    EntityManager em3 = Mockito.mock(EntityManager.class);
+
+    this.map.put("pu1", ImmutableMap.of(thread1, new EntityManagerFactoryStore.Context(em1), thread2, new EntityManagerFactoryStore.Context(em2)));
+    this.map.put("pu2", ImmutableMap.of(thread1, new EntityManagerFactoryStore.Context(em3)));
+
+    this.store.clear(thread1);
+
+    Mockito.verify(em1).clear();
+    Mockito.verify(em2, Mockito.never()).clear();
+    Mockito.verify(em3).clear();
+  }
+
+  @Test
+  public void testJoinTransaction() {
+    Thread thread1 = Mockito.mock(Thread.class);
+    Thread thread2 = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+    EntityManager em2 = Mockito.mock(EntityManager.class);
+    EntityManager em3 = Mockito.mock(EntityManager.class);
+
+    this.map.put("pu1", ImmutableMap.of(thread1, new EntityManagerFactoryStore.Context(em1), thread2, new EntityManagerFactoryStore.Context(em2)));
+    this.map.put("pu2", ImmutableMap.of(thread1, new EntityManagerFactoryStore.Context(em3)));
+
+    this.store.joinTransaction(thread1);
+
+    Mockito.verify(em1).joinTransaction();
+    Mockito.verify(em2, Mockito.never()).joinTransaction();
+    Mockito.verify(em3).joinTransaction();
+  }
+
+  @Test
+  public void testSetReadOnly() {
+    Thread thread = Mockito.mock(Thread.class);
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+    EntityManager em2 = Mockito.mock(EntityManager.class);
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+
+    this.map.put("pu1", ImmutableMap.of(thread, new EntityManagerFactoryStore.Context(em1)));
+
+    Mockito.doReturn(emf).when(this.store).getEMF("pu2");
+    Mockito.doReturn(em2).when(emf).createEntityManager();
+
+    this.store.setReadOnly(thread, true);
+    this.store.acquire("pu2", thread);
+
+    Assert.assertTrue(this.store.isReadOnly(thread));
+    Mockito.verify(em1).setFlushMode(FlushModeType.COMMIT);
+    Mockito.verify(em2).setFlushMode(FlushModeType.COMMIT);
+
+    this.store.setReadOnly(thread, false);
+
+    Assert.assertFalse(this.store.isReadOnly(thread));
+    Mockito.verify(em1).setFlushMode(FlushModeType.AUTO);
+    Mockito.verify(em2).setFlushMode(FlushModeType.AUTO);
+  }
+
+  @Test
+  public void testIsReadOnlyTakesNoLock() throws Exception {
+    FutureTask<Boolean> check = new FutureTask<>(() -> this.store.isReadOnly(Thread.currentThread()));
+
+    // the current thread is checked while another thread holds the context map
+    synchronized (this.store.getContextMap()) {
+      new Thread(check).start();
+      Assert.assertFalse(check.get(5, TimeUnit.SECONDS));
+    }
+
+    Thread thread = Thread.currentThread();
+    this.store.setReadOnly(thread, true);
+    Assert.assertTrue(this.store.isReadOnly(thread));
+    this.store.setReadOnly(thread, false);
+    Assert.assertFalse(this.store.isReadOnly(thread));
+  }
+
+  @Test
+  public void testSetReadOnlyRestoresFlushMode() {
+    Thread thread = Mockito.mock(Thread.class);
+    EntityManager em = Mockito.mock(EntityManager.class);
+
+    this.map.put("pu1", ImmutableMap.of(thread, new EntityManagerFactoryStore.Context(em)));
+
+    Mockito.doReturn(FlushModeType.COMMIT).when(em).getFlushMode();
+
+    this.store.setReadOnly(thread, true);
+    this.store.setReadOnly(thread, false);
+
+    Mockito.verify(em, Mockito.times(2)).setFlushMode(FlushModeType.COMMIT);
+    Mockito.verify(em, Mockito.never()).setFlushMode(FlushModeType.AUTO);
+  }
+
+  @Test
+  public void testUnitOfWork() {
+    this.store.beginUnitOfWork();
+    Assert.assertTrue(new UnitOfWorkContext().isActive());
+
+    this.store.endUnitOfWork();
+    Assert.assertFalse(new UnitOfWorkContext().isActive());
+    Mockito.verify(this.store).clear(Thread.currentThread());
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    EntityManagerFactory emf1 = Mockito.mock(EntityManagerFactory.class);
+    EntityManagerFactory emf2 = Mockito.mock(EntityManagerFactory.class);
+    EntityManagerFactory emf3 = Mockito.mock(EntityManagerFactory.class);
+
+    EntityManagerFactoryStore store = Mockito.spy(new EntityManagerFactoryStore());
+    store.setMaxFactories(2);
+    Mockito.doReturn(emf1).when(store).createEMF("pu1");
+    Mockito.doReturn(emf2).when(store).createEMF("pu2");
+    Mockito.doReturn(emf3).when(store).createEMF("pu3");
+
+    store.getEMF("pu1");
+    store.getEMF("pu2");
+    store.getEMF("pu1");
+    store.getEMF("pu3");
+
+    Assert.assertEquals(ImmutableMap.of("pu1", emf1, "pu3", emf3), store.getEMFs());
+    Mockito.verify(emf2).close();
+    Mockito.verify(emf1, Mockito.never()).close();
+  }
+
+  @Test
+  public void testEvictOnlyUnreferenced() {
+    Thread thread = Mockito.mock(Thread.class);
+    EntityManagerFactory emf1 = Mockito.mock(EntityManagerFactory.class);
+    EntityManagerFactory emf2 = Mockito.mock(EntityManagerFactory.class);
+    EntityManager em = Mockito.mock(EntityManager.class);
+
+    EntityManagerFactoryStore store = Mockito.spy(new EntityManagerFactoryStore());
+    store.setMaxFactories(1);
+    Mockito.doReturn(emf1).when(store).createEMF("pu1");
+    Mockito.doReturn(emf2).when(store).createEMF("pu2");
+    Mockito.doReturn(em).when(emf1).createEntityManager();
+
+    store.acquire("pu1", thread);
+    store.getEMF("pu2");
+
+    Assert.assertEquals(ImmutableMap.of("pu1", emf1, "pu2", emf2), store.getEMFs());
+
+    store.release("pu1", thread);
+
+    // releasing the entity manager makes its factory the most recently used one
+    Assert.assertEquals(ImmutableMap.of("pu1", emf1), store.getEMFs());
+    Mockito.verify(em).close();
+    Mockito.verify(emf2).close();
+    Mockito.verify(emf1, Mockito.never()).close();
+  }
+
+  @Test
+  public void testEvictIdle() {
+    EntityManagerFactory emf1 = Mockito.mock(EntityManagerFactory.class);
+    EntityManagerFactory emf2 = Mockito.mock(EntityManagerFactory.class);
+
+    EntityManagerFactoryStore store = Mockito.spy(new EntityManagerFactoryStore());
+    store.setIdleTimeout(1000);
+    Mockito.doReturn(emf1).when(store).createEMF("pu1");
+    Mockito.doReturn(emf2).when(store).createEMF("pu2");
+
+    Mockito.doReturn(1000L).when(store).currentTime();
+    store.getEMF("pu1");
+    Mockito.doReturn(1500L).when(store).currentTime();
+    store.getEMF("pu2");
+
+    store.evict();
+    Assert.assertEquals(2, store.getEMFs().size());
+
+    Mockito.doReturn(2000L).when(store).currentTime();
+    store.evict();
+
+    Assert.assertEquals(ImmutableMap.of("pu2", emf2), store.getEMFs());
+    Mockito.verify(emf1).close();
+  }
+
+  @Test
+  public void testPinnedIsNotEvicted() {
+    EntityManagerFactory emf1 = Mockito.mock(EntityManagerFactory.class);
+    EntityManagerFactory emf2 = Mockito.mock(EntityManagerFactory.class);
+
+    EntityManagerFactoryStore store = Mockito.spy(new EntityManagerFactoryStore());
+    store.setMaxFactories(1);
+    Mockito.doReturn(emf1).when(store).createEMF("pu1");
+    Mockito.doReturn(emf2).when(store).createEMF("pu2");
+
+    Assert.assertSame(emf1, store.pin("pu1"));
+    Assert.assertSame(emf1, store.pin("pu1"));
+    store.getEMF("pu2");
+    store.unpin("pu1");
+
+    Assert.assertEquals(ImmutableMap.of("pu1", emf1, "pu2", emf2), store.getEMFs());
+
+    store.unpin("pu1");
+
+    Assert.assertEquals(ImmutableMap.of("pu1", emf1), store.getEMFs());
+    Assert.assertTrue(store.getPins().isEmpty());
+    Mockito.verify(emf1, Mockito.never()).close();
+    Mockito.verify(emf2).close();
+  }
+
+  @Test
+  public void testAccessRefreshesAccessTime() {
+    Thread thread = Mockito.mock(Thread.class);
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+
+    EntityManagerFactoryStore store = Mockito.spy(new EntityManagerFactoryStore());
+    store.setIdleTimeout(1000);
+    Mockito.doReturn(emf).when(store).createEMF("pu");
+    Mockito.doReturn(Mockito.mock(EntityManager.class)).when(emf).createEntityManager();
+
+    Mockito.doReturn(1000L).when(store).currentTime();
+    store.acquire("pu", thread);
+    Mockito.doReturn(1900L).when(store).currentTime();
+    store.acquire("pu", thread);
+    Assert.assertEquals(ImmutableMap.of("pu", 1900L), store.getAccessTimes());
+
+    Mockito.doReturn(2500L).when(store).currentTime();
+    store.release("pu", thread);
+    Assert.assertEquals(ImmutableMap.of("pu", 2500L), store.getAccessTimes());
+
+    store.release("pu", thread);
+    Mockito.doReturn(3400L).when(store).currentTime();
+    store.evict();
+    Assert.assertEquals(ImmutableMap.of("pu", emf), store.getEMFs());
+
+    Mockito.doReturn(3500L).when(store).currentTime();
+    store.evict();
+    Assert.assertTrue(store.getEMFs().isEmpty());
+    Mockito.verify(emf).close();
+  }
+
+  @Test
+  public void testPinnedAreNotEvictedConcurrently() throws InterruptedException {
+    Set<Object> closed = Collections.synchronizedSet(Sets.newIdentityHashSet());
+    AtomicReference<Throwable> error = new AtomicReference<>();
+
+    EntityManagerFactoryStore store = Mockito.spy(new EntityManagerFactoryStore());
+    store.setMaxFactories(1);
+    Mockito.doAnswer(invocation -> EntityManagerFactoryStoreTest.mockCloseable(EntityManagerFactory.class, closed))
+      .when(store).createEMF(Matchers.anyString());
+
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      threads.add(new Thread(() -> {
+        try {
+          for (int j = 0; j < 500; j++) {
+            String puName = "pu" + (j % 5);
+            store.acquire(puName, Thread.currentThread());
+            store.release(puName, Thread.currentThread());
+            store.getEMF(puName);
+          }
+        } catch (final Throwable ex) {
+          error.compareAndSet(null, ex);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+
+    for (int i = 0; i < 200; i++) {
+      DelegatingEntityManager em = new DelegatingEntityManager("pinned", store);
+      EntityManagerFactory emf = em.getEntityManagerFactory();
+      EntityManager target = em.getEM();
+
+      Thread.yield();
+
+      Assert.assertTrue(emf.isOpen());
+      Assert.assertTrue(target.isOpen());
+      Assert.assertSame(emf, em.getEntityManagerFactory());
+
+      em.close();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertNull(error.get());
+  }
+
+  private static <T> T mockCloseable(final Class<T> type, final Set<Object> closed) {
+    return Mockito.mock(type, (Answer<Object>) invocation -> {
+      switch (invocation.getMethod().getName()) {
+        case "close":
+          closed.add(invocation.getMock());
+          return null;
+        case "isOpen":
+          return !closed.contains(invocation.getMock());
+        case "createEntityManager":
+          return EntityManagerFactoryStoreTest.mockCloseable(EntityManager.class, closed);
+        default:
+          return Mockito.RETURNS_DEFAULTS.answer(invocation);
+      }
+    });
+  }
 }
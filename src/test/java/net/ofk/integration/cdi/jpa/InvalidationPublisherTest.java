@@ -0,0 +1,147 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.persistence.Entity;
+import javax.persistence.PersistenceUnitUtil;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class InvalidationPublisherTest {
+  @Entity
+  public static class Item {}
+
+  public static class ItemProxy extends InvalidationPublisherTest.Item {}
+
+  private InvalidationPublisher publisher;
+  private List<Set<EntityKey>> received;
+
+  @Before
+  public void setUp() {
+    this.received = Collections.synchronizedList(Lists.newArrayList());
+    this.publisher = new InvalidationPublisher();
+    this.publisher.subscribe(this.received::add);
+  }
+
+  @After
+  public void tearDown() {
+    this.publisher.stop();
+    EntityChanges.discard();
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    CountDownLatch latch = new CountDownLatch(2);
+    this.publisher.subscribe(keys -> latch.countDown());
+    this.publisher.setCoalesceInterval(200);
+    this.publisher.setMaxBatchSize(2);
+
+    EntityKey k1 = new EntityKey("Item", 1L);
+    EntityKey k2 = new EntityKey("Item", 2L);
+    EntityKey k3 = new EntityKey("Item", 3L);
+
+    this.publisher.publish(ImmutableSet.of(k1, k2));
+    this.publisher.publish(ImmutableSet.of(k2, k3));
+    this.publisher.publish(ImmutableSet.of(k1));
+
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+    Assert.assertEquals(2, this.received.size());
+    Assert.assertEquals(ImmutableSet.of(k1, k2), this.received.get(0));
+    Assert.assertEquals(ImmutableSet.of(k3), this.received.get(1));
+  }
+
+  @Test
+  public void testStopSendsPending() {
+    this.publisher.setCoalesceInterval(TimeUnit.MINUTES.toMillis(1));
+
+    EntityKey k1 = new EntityKey("Item", 1L);
+    this.publisher.publish(ImmutableSet.of(k1));
+    this.publisher.stop();
+
+    Assert.assertEquals(Collections.singletonList(ImmutableSet.of(k1)), this.received);
+  }
+
+  @Test
+  public void testEntityChanges() {
+    EntityChanges.record(InvalidationPublisherTest.Item.class, 1L);
+    Assert.assertTrue(EntityChanges.take().isEmpty());
+
+    EntityChanges.start();
+    Assert.assertTrue(EntityChanges.isStarted());
+
+    EntityChanges.record(InvalidationPublisherTest.ItemProxy.class, 1L);
+    EntityChanges.record(InvalidationPublisherTest.Item.class, 1L);
+    EntityChanges.record(InvalidationPublisherTest.Item.class, null);
+
+    Assert.assertEquals(ImmutableSet.of(new EntityKey(InvalidationPublisherTest.Item.class.getName(), 1L)), EntityChanges.take());
+    Assert.assertFalse(EntityChanges.isStarted());
+
+    EntityChanges.start();
+    EntityChanges.record(InvalidationPublisherTest.Item.class, 1L);
+    EntityChanges.discard();
+    Assert.assertTrue(EntityChanges.take().isEmpty());
+  }
+
+  @Test
+  public void testUnresolvedIdentifiers() {
+    PersistenceUnitUtil util = Mockito.mock(PersistenceUnitUtil.class);
+    InvalidationPublisherTest.Item item1 = new InvalidationPublisherTest.Item();
+    InvalidationPublisherTest.Item item2 = new InvalidationPublisherTest.Item();
+
+    EntityChanges.start();
+    EntityChanges.recordEntity(item1, util);
+    EntityChanges.recordEntity(item2, util);
+
+    // the identifier of the first item is generated on flush, the second one never gets it
+    Mockito.doReturn(1L).when(util).getIdentifier(item1);
+
+    Assert.assertEquals(ImmutableSet.of(new EntityKey(InvalidationPublisherTest.Item.class.getName(), 1L)), EntityChanges.take());
+    Assert.assertTrue(EntityChanges.take().isEmpty());
+  }
+
+  @Test
+  public void testPublishAfterStop() {
+    this.publisher.stop();
+    this.publisher.publish(ImmutableSet.of(new EntityKey("Item", 1L)));
+
+    Assert.assertTrue(this.publisher.getPending().isEmpty());
+    Assert.assertTrue(this.received.isEmpty());
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    this.publisher.setCoalesceInterval(TimeUnit.MINUTES.toMillis(1));
+    this.publisher.setCapacity(2);
+
+    EntityKey k1 = new EntityKey("Item", 1L);
+    EntityKey k2 = new EntityKey("Item", 2L);
+    EntityKey k3 = new EntityKey("Item", 3L);
+    this.publisher.publish(ImmutableSet.of(k1, k2));
+
+    Thread thread = new Thread(() -> this.publisher.publish(ImmutableSet.of(k3)));
+    thread.start();
+    while (thread.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    Assert.assertEquals(ImmutableSet.of(k1, k2), this.publisher.getPending());
+
+    Assert.assertEquals(ImmutableSet.of(k1, k2), this.publisher.next());
+    thread.join(TimeUnit.SECONDS.toMillis(5));
+
+    Assert.assertFalse(thread.isAlive());
+    Assert.assertEquals(ImmutableSet.of(k3), this.publisher.getPending());
+  }
+}
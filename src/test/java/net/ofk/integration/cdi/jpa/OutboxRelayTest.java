@@ -0,0 +1,297 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import net.ofk.integration.cdi.jta.TransactionGate;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class OutboxRelayTest {
+  private OutboxRelay relay;
+  private TransactionManager tm;
+  private EntityManagerFactoryStore store;
+  private EntityManager em;
+
+  @Before
+  public void setUp() {
+    this.tm = Mockito.mock(TransactionManager.class);
+    this.store = Mockito.mock(EntityManagerFactoryStore.class);
+    this.em = Mockito.mock(EntityManager.class);
+    Mockito.doReturn(this.em).when(this.store).acquire(Matchers.anyString(), Matchers.any(Thread.class));
+
+    this.relay = Mockito.spy(new OutboxRelay());
+    this.relay.tm = this.tm;
+    this.relay.store = this.store;
+    this.relay.gate = new TransactionGate();
+    this.relay.setPUName("outboxPU");
+  }
+
+  @After
+  public void tearDown() {
+    this.relay.stop();
+  }
+
+  private static OutboxEvent event(final long id) {
+    OutboxEvent event = Mockito.mock(OutboxEvent.class);
+    Mockito.doReturn(id).when(event).getId();
+    return event;
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testReadBatchSkipsInFlight() throws Exception {
+    OutboxEvent e1 = OutboxRelayTest.event(1);
+    OutboxEvent e2 = OutboxRelayTest.event(2);
+    OutboxEvent e3 = OutboxRelayTest.event(3);
+    OutboxEvent e4 = OutboxRelayTest.event(4);
+
+    TypedQuery<OutboxEvent> query = Mockito.mock(TypedQuery.class);
+    Mockito.doReturn(query).when(this.em).createQuery(Matchers.anyString(), Matchers.eq(OutboxEvent.class));
+    Mockito.doReturn(query).when(query).setMaxResults(Matchers.anyInt());
+    Mockito.doReturn(ImmutableList.of(e1, e2, e3, e4)).when(query).getResultList();
+
+    this.relay.setBatchSize(2);
+    this.relay.getInFlight().add(2L);
+
+    List<OutboxEvent> result = this.relay.readBatch();
+
+    Assert.assertEquals(ImmutableList.of(e1, e3), result);
+    Mockito.verify(query).setMaxResults(3);
+    Mockito.verify(this.tm).begin();
+    Mockito.verify(this.tm).commit();
+    Mockito.verify(this.store).release("outboxPU", Thread.currentThread());
+  }
+
+  /**
+   * The query may still see an event whose delivery completes meanwhile, it must not be read again.
+   */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testReadBatchSkipsDeliveredMeanwhile() throws Exception {
+    OutboxEvent e1 = OutboxRelayTest.event(1);
+    OutboxEvent e2 = OutboxRelayTest.event(2);
+
+    TypedQuery<OutboxEvent> query = Mockito.mock(TypedQuery.class);
+    Mockito.doReturn(query).when(this.em).createQuery(Matchers.anyString(), Matchers.eq(OutboxEvent.class));
+    Mockito.doReturn(query).when(query).setMaxResults(Matchers.anyInt());
+    Mockito.doAnswer(invocation -> {
+      this.relay.getInFlight().remove(1L);
+      return ImmutableList.of(e1, e2);
+    }).when(query).getResultList();
+
+    this.relay.getInFlight().add(1L);
+
+    Assert.assertEquals(ImmutableList.of(e2), this.relay.readBatch());
+  }
+
+  @Test
+  public void testDeliverRetries() throws Exception {
+    OutboxEvent e1 = OutboxRelayTest.event(1);
+    OutboxEvent e2 = OutboxRelayTest.event(2);
+    List<OutboxEvent> batch = ImmutableList.of(e1, e2);
+
+    OutboxHandler handler = Mockito.mock(OutboxHandler.class);
+    Mockito.doThrow(new Exception()).doNothing().when(handler).handle(batch);
+    Mockito.doReturn(Status.STATUS_ACTIVE).when(this.tm).getStatus();
+    Query query = Mockito.mock(Query.class);
+    Mockito.doReturn(query).when(this.em).createQuery(Matchers.anyString());
+    Mockito.doReturn(query).when(query).setParameter(Matchers.anyString(), Matchers.any());
+    Mockito.doNothing().when(this.relay).sleep(Matchers.anyLong());
+
+    this.relay.setHandler(handler);
+    this.relay.getInFlight().addAll(ImmutableSet.of(1L, 2L, 3L));
+
+    this.relay.deliver(batch);
+
+    Mockito.verify(handler, Mockito.times(2)).handle(batch);
+    Mockito.verify(this.relay).sleep(1000);
+    Mockito.verify(query).setParameter("ids", ImmutableList.of(1L, 2L));
+    Mockito.verify(query).executeUpdate();
+    Assert.assertEquals(ImmutableSet.of(3L), this.relay.getInFlight());
+  }
+
+  @Test
+  public void testDeliverDeadLetter() throws Exception {
+    OutboxEvent e1 = OutboxRelayTest.event(1);
+    OutboxEvent e2 = OutboxRelayTest.event(2);
+    OutboxEvent e3 = OutboxRelayTest.event(3);
+    List<List<OutboxEvent>> handled = Lists.newArrayList();
+
+    Mockito.doReturn(Status.STATUS_ACTIVE).when(this.tm).getStatus();
+    Query delete = Mockito.mock(Query.class);
+    Query deadLetter = Mockito.mock(Query.class);
+    Mockito.doReturn(delete).when(this.em).createQuery(Matchers.startsWith("delete"));
+    Mockito.doReturn(deadLetter).when(this.em).createQuery(Matchers.startsWith("update"));
+    Mockito.doReturn(delete).when(delete).setParameter(Matchers.anyString(), Matchers.any());
+    Mockito.doReturn(deadLetter).when(deadLetter).setParameter(Matchers.anyString(), Matchers.any());
+    Mockito.doNothing().when(this.relay).sleep(Matchers.anyLong());
+
+    this.relay.setMaxAttempts(2);
+    this.relay.setHandler(events -> {
+      handled.add(ImmutableList.copyOf(events));
+      if (events.contains(e2)) {
+        throw new Exception();
+      }
+    });
+    this.relay.getInFlight().addAll(ImmutableSet.of(1L, 2L, 3L));
+
+    this.relay.deliver(ImmutableList.of(e1, e2, e3));
+
+    Assert.assertEquals(ImmutableList.of(
+      ImmutableList.of(e1, e2, e3), ImmutableList.of(e1, e2, e3),
+      ImmutableList.of(e1),
+      ImmutableList.of(e2, e3), ImmutableList.of(e2, e3),
+      ImmutableList.of(e2), ImmutableList.of(e2),
+      ImmutableList.of(e3)), handled);
+    Mockito.verify(delete).setParameter("ids", ImmutableList.of(1L));
+    Mockito.verify(delete).setParameter("ids", ImmutableList.of(3L));
+    Mockito.verify(deadLetter).setParameter("ids", ImmutableList.of(2L));
+    Assert.assertTrue(this.relay.getInFlight().isEmpty());
+  }
+
+  @Test
+  public void testExecuteRollsBack() throws Exception {
+    RuntimeException exception = new RuntimeException();
+    Mockito.doReturn(Status.STATUS_ACTIVE).when(this.tm).getStatus();
+
+    try {
+      this.relay.execute(em -> {
+        throw exception;
+      });
+      Assert.fail();
+    } catch (final RuntimeException ex) {
+      Assert.assertSame(exception, ex);
+    }
+
+    Mockito.verify(this.store).release("outboxPU", Thread.currentThread());
+    Mockito.verify(this.tm).rollback();
+    Mockito.verify(this.tm, Mockito.never()).commit();
+  }
+
+  @Test
+  public void testExecuteWithClosedGate() throws Exception {
+    this.relay.gate.close();
+
+    try {
+      this.relay.execute(em -> 0);
+      Assert.fail();
+    } catch (final SystemException ex) {
+      Mockito.verify(this.tm, Mockito.never()).begin();
+      Mockito.verify(this.store, Mockito.never()).acquire(Matchers.anyString(), Matchers.any(Thread.class));
+    }
+  }
+
+  @Test
+  public void testRelay() throws Exception {
+    OutboxEvent e1 = OutboxRelayTest.event(1);
+    CountDownLatch latch = new CountDownLatch(1);
+
+    Mockito.doReturn(ImmutableList.of(e1)).doReturn(Collections.emptyList()).when(this.relay).readBatch();
+    Mockito.doReturn(0).when(this.relay).execute(Matchers.any());
+    this.relay.setHandler(events -> {
+      Assert.assertEquals(ImmutableList.of(e1), events);
+      latch.countDown();
+    });
+
+    this.relay.start();
+    this.relay.wake();
+
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testWakeDoesNotStart() throws Exception {
+    this.relay.wake();
+
+    Mockito.verify(this.relay, Mockito.never()).start();
+    Mockito.verify(this.relay, Mockito.never()).readBatch();
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    CountDownLatch latch = new CountDownLatch(1);
+
+    Mockito.doReturn(ImmutableList.of(OutboxRelayTest.event(1))).doReturn(Collections.emptyList()).when(this.relay).readBatch();
+    this.relay.setHandler(events -> {
+      latch.countDown();
+      Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+    });
+
+    this.relay.start();
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(ImmutableSet.of(1L), this.relay.getInFlight());
+
+    this.relay.stop();
+
+    Assert.assertTrue(this.relay.getInFlight().isEmpty());
+    Assert.assertTrue(Thread.getAllStackTraces().keySet().stream().noneMatch(thread -> thread.getName().startsWith("outbox-")));
+    Mockito.verify(this.relay, Mockito.never()).execute(Matchers.any());
+
+    try {
+      this.relay.start();
+      Assert.fail();
+    } catch (final IllegalStateException ex) {
+      // the stopped relay isn't started again
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testStartWithoutHandler() {
+    this.relay.start();
+  }
+
+  @Test
+  public void testOutbox() {
+    Mockito.doReturn(this.em).when(this.em).unwrap(EntityManager.class);
+
+    OutboxEvent event = Outbox.publish(this.em, "created", "{}");
+
+    Mockito.verify(this.em).persist(event);
+    Assert.assertEquals("created", event.getType());
+    Assert.assertTrue(Outbox.take());
+    Assert.assertFalse(Outbox.take());
+  }
+
+  @Test
+  public void testOutboxEventIsNotChange() {
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+    PersistenceUnitUtil util = Mockito.mock(PersistenceUnitUtil.class);
+    Mockito.doReturn(1L).when(util).getIdentifier(Matchers.any());
+    Mockito.doReturn(util).when(emf).getPersistenceUnitUtil();
+    Mockito.doReturn(emf).when(this.em).getEntityManagerFactory();
+    Mockito.doReturn(this.em).when(this.em).unwrap(EntityManager.class);
+    DelegatingEntityManager em = new DelegatingEntityManager("outboxPU", this.store);
+
+    EntityChanges.start();
+    try {
+      OutboxEvent event = Outbox.publish(em, "created", "{}");
+
+      Mockito.verify(this.em).persist(event);
+    } finally {
+      Assert.assertTrue(EntityChanges.take().isEmpty());
+      Outbox.discard();
+      em.close();
+    }
+  }
+}
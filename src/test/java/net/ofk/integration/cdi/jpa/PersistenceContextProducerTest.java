@@ -0,0 +1,97 @@
+package net.ofk.integration.cdi.jpa;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import javax.enterprise.inject.Instance;
+import javax.persistence.EntityManager;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class PersistenceContextProducerTest {
+  private PersistenceContextProducer producer;
+  private EntityManagerFactoryStore store;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    this.store = Mockito.mock(EntityManagerFactoryStore.class);
+    this.producer = new PersistenceContextProducer();
+    this.producer.store = this.store;
+    this.producer.puNames = Mockito.mock(Instance.class);
+    Mockito.doReturn(true).when(this.producer.puNames).isUnsatisfied();
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty(PersistenceContextProducer.PU_NAME_PROPERTY);
+  }
+
+  @Test
+  public void testProduceIsLazy() {
+    EntityManager em = this.producer.produceRequestEM();
+
+    Assert.assertTrue(em instanceof DelegatingEntityManager);
+    Assert.assertEquals("default", ((DelegatingEntityManager) em).getPUName());
+
+    this.producer.closeRequestEM(em);
+
+    Mockito.verifyZeroInteractions(this.store);
+  }
+
+  @Test
+  public void testUnitOfWorkPUName() {
+    System.setProperty(PersistenceContextProducer.PU_NAME_PROPERTY, "testPU");
+
+    EntityManager em = this.producer.produceUnitOfWorkEM();
+
+    Assert.assertEquals("testPU", ((DelegatingEntityManager) em).getPUName());
+  }
+
+  @Test
+  public void testDeploymentPUName() {
+    System.setProperty(PersistenceContextProducer.PU_NAME_PROPERTY, "jvmPU");
+    Mockito.doReturn(false).when(this.producer.puNames).isUnsatisfied();
+    Mockito.doReturn(" appPU ").when(this.producer.puNames).get();
+
+    EntityManager em = this.producer.produceRequestEM();
+
+    Assert.assertEquals("appPU", ((DelegatingEntityManager) em).getPUName());
+    Assert.assertEquals("appPU", ((DelegatingEntityManager) this.producer.produceUnitOfWorkEM()).getPUName());
+    Mockito.verify(this.producer.puNames).get();
+  }
+
+  @Test
+  public void testCloseReleases() {
+    EntityManager target = Mockito.mock(EntityManager.class);
+    Mockito.doReturn(target).when(this.store).acquire(Matchers.eq("default"), Matchers.any(Thread.class));
+
+    EntityManager em = this.producer.produceUnitOfWorkEM();
+    em.persist(this);
+    this.producer.closeUnitOfWorkEM(em);
+
+    Mockito.verify(target).persist(this);
+    Mockito.verify(this.store).release("default", Thread.currentThread());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testProduceTenantEM() {
+    TenantResolver resolver = Mockito.mock(TenantResolver.class);
+    this.producer.tenantResolvers = Mockito.mock(Instance.class);
+    Mockito.doReturn(resolver).when(this.producer.tenantResolvers).get();
+
+    EntityManager em = this.producer.produceRequestTenantEM();
+
+    Assert.assertTrue(em instanceof TenantEntityManager);
+
+    this.producer.closeRequestTenantEM(em);
+
+    Mockito.verifyZeroInteractions(this.store, resolver);
+  }
+}
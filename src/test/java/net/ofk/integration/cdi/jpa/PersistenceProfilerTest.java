@@ -0,0 +1,184 @@
+package net.ofk.integration.cdi.jpa;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class PersistenceProfilerTest {
+  private PersistenceProfiler profiler;
+
+  @Before
+  public void setUp() {
+    this.profiler = new PersistenceProfiler();
+  }
+
+  @After
+  public void tearDown() {
+    PersistenceProfiler.getInstance().setEnabled(false);
+    PersistenceProfiler.getInstance().reset();
+  }
+
+  @Test
+  public void testDisabled() {
+    Query query = Mockito.mock(Query.class);
+
+    Assert.assertEquals(0, this.profiler.start());
+    this.profiler.record(PersistenceProfiler.FLUSH, "testPU", this.profiler.start());
+
+    Assert.assertTrue(this.profiler.getEntries().isEmpty());
+    Assert.assertSame(query, this.profiler.profile(query, Query.class, "testPU"));
+  }
+
+  @Test
+  public void testRecord() {
+    this.profiler.setEnabled(true);
+
+    this.profiler.record(PersistenceProfiler.FLUSH, "testPU", this.profiler.start());
+
+    String previous = PersistenceProfiler.enter("Service.save");
+    try {
+      this.profiler.record(PersistenceProfiler.FLUSH, "testPU", this.profiler.start());
+      this.profiler.record(PersistenceProfiler.FLUSH, "testPU", this.profiler.start());
+      this.profiler.record(PersistenceProfiler.COMMIT, null, this.profiler.start());
+    } finally {
+      PersistenceProfiler.leave(previous);
+    }
+
+    List<PersistenceProfiler.Entry> entries = this.profiler.getEntries();
+    Assert.assertEquals(3, entries.size());
+
+    PersistenceProfiler.Entry flush = entries.stream().filter(e -> "Service.save".equals(e.getCaller()) && PersistenceProfiler.FLUSH.equals(e.getOperation())).findFirst().get();
+    Assert.assertEquals("testPU", flush.getPUName());
+    Assert.assertEquals(2, flush.getCount());
+
+    PersistenceProfiler.Entry commit = entries.stream().filter(e -> PersistenceProfiler.COMMIT.equals(e.getOperation())).findFirst().get();
+    Assert.assertEquals("*", commit.getPUName());
+    Assert.assertEquals(1, commit.getCount());
+
+    Assert.assertTrue(entries.stream().anyMatch(e -> "?".equals(e.getCaller())));
+
+    this.profiler.reset();
+    Assert.assertTrue(this.profiler.getEntries().isEmpty());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testProfileQuery() {
+    TypedQuery<Object> query = Mockito.mock(TypedQuery.class);
+    Mockito.doReturn(query).when(query).setParameter("id", 1);
+    Mockito.doReturn(Collections.emptyList()).when(query).getResultList();
+
+    this.profiler.setEnabled(true);
+
+    TypedQuery<Object> profiled = this.profiler.profile(query, TypedQuery.class, "testPU");
+
+    Assert.assertNotSame(query, profiled);
+    Assert.assertSame(profiled, profiled.setParameter("id", 1));
+    Assert.assertEquals(Collections.emptyList(), profiled.getResultList());
+
+    List<PersistenceProfiler.Entry> entries = this.profiler.getEntries();
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals(PersistenceProfiler.QUERY, entries.get(0).getOperation());
+    Assert.assertEquals(1, entries.get(0).getCount());
+  }
+
+  @Test
+  public void testProfiledFlush() {
+    EntityManagerFactoryStore store = Mockito.mock(EntityManagerFactoryStore.class);
+    EntityManager target = Mockito.mock(EntityManager.class);
+    Mockito.doReturn(target).when(store).acquire("testPU", Thread.currentThread());
+
+    PersistenceProfiler.getInstance().setEnabled(true);
+
+    new DelegatingEntityManager("testPU", store).flush();
+
+    Mockito.verify(target).flush();
+    List<PersistenceProfiler.Entry> entries = PersistenceProfiler.getInstance().getEntries();
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals(PersistenceProfiler.FLUSH, entries.get(0).getOperation());
+  }
+
+  @Test
+  public void testRegister() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    this.profiler.register();
+    ObjectName name = this.profiler.getObjectName();
+    try {
+      this.profiler.setEnabled(true);
+      this.profiler.record(PersistenceProfiler.FLUSH, "testPU", this.profiler.start());
+
+      Assert.assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+      CompositeData[] entries = (CompositeData[]) server.getAttribute(name, "Entries");
+      Assert.assertEquals(1, entries.length);
+      Assert.assertEquals("testPU", entries[0].get("PUName"));
+    } finally {
+      this.profiler.unregister();
+    }
+
+    Assert.assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void testRegisterSeveralProfilers() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    PersistenceProfiler other = new PersistenceProfiler();
+
+    this.profiler.register();
+    other.register();
+    try {
+      Assert.assertNotEquals(this.profiler.getObjectName(), other.getObjectName());
+      Assert.assertTrue(server.isRegistered(this.profiler.getObjectName()));
+      Assert.assertTrue(server.isRegistered(other.getObjectName()));
+
+      ObjectName name = this.profiler.getObjectName();
+      this.profiler.unregister();
+
+      Assert.assertFalse(server.isRegistered(name));
+      Assert.assertTrue(server.isRegistered(other.getObjectName()));
+    } finally {
+      this.profiler.unregister();
+      other.unregister();
+    }
+  }
+
+  @Test
+  public void testStoreRegistersProfiler() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    EntityManagerFactoryStore store = new EntityManagerFactoryStore();
+
+    store.registerProfiler();
+    ObjectName name = PersistenceProfiler.getInstance().getObjectName();
+    Assert.assertTrue(server.isRegistered(name));
+
+    store.unregisterProfiler();
+    Assert.assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void testProfiledQueryUnwrap() {
+    Query query = Mockito.mock(Query.class);
+    Mockito.doReturn(query).when(query).unwrap(Object.class);
+
+    this.profiler.setEnabled(true);
+
+    Query profiled = this.profiler.profile(query, Query.class, "testPU");
+
+    Assert.assertSame(query, profiled.unwrap(Object.class));
+  }
+}
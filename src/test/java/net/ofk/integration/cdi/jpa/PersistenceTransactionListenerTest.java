@@ -0,0 +1,136 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import javax.persistence.EntityManager;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class PersistenceTransactionListenerTest {
+  private PersistenceTransactionListener listener;
+  private InvalidationPublisher publisher;
+  private OutboxRelay relay;
+  private EntityManager em;
+
+  @Before
+  public void setUp() {
+    this.publisher = Mockito.mock(InvalidationPublisher.class);
+    this.relay = Mockito.mock(OutboxRelay.class);
+    this.listener = new PersistenceTransactionListener();
+    this.listener.publisher = this.publisher;
+    this.listener.relay = this.relay;
+
+    this.em = Mockito.mock(EntityManager.class);
+    Mockito.doReturn(this.em).when(this.em).unwrap(EntityManager.class);
+  }
+
+  @After
+  public void tearDown() {
+    EntityChanges.discard();
+    Outbox.discard();
+    PersistenceProfiler.getInstance().setEnabled(false);
+    PersistenceProfiler.getInstance().reset();
+  }
+
+  public void caller() {}
+
+  @Test
+  public void testPublishChangesAfterCommit() {
+    this.listener.begun();
+    EntityChanges.record(Object.class, 1L);
+    Outbox.publish(this.em, "created", "{}");
+
+    this.listener.afterCommit(this.listener.beforeCommit(), true);
+
+    Mockito.verify(this.publisher).publish(ImmutableSet.of(new EntityKey(Object.class.getName(), 1L)));
+    Mockito.verify(this.relay).wake();
+    Assert.assertFalse(EntityChanges.isStarted());
+    Assert.assertFalse(Outbox.take());
+  }
+
+  @Test
+  public void testNothingToPublish() {
+    this.listener.begun();
+
+    this.listener.afterCommit(this.listener.beforeCommit(), true);
+
+    Mockito.verifyZeroInteractions(this.publisher, this.relay);
+  }
+
+  @Test
+  public void testAfterCommitFailures() {
+    Mockito.doThrow(new IllegalStateException()).when(this.publisher).publish(Matchers.anyObject());
+    Mockito.doThrow(new IllegalStateException()).when(this.relay).wake();
+
+    this.listener.begun();
+    EntityChanges.record(Object.class, 1L);
+    Outbox.publish(this.em, "created", "{}");
+
+    this.listener.afterCommit(this.listener.beforeCommit(), true);
+
+    Mockito.verify(this.publisher).publish(Matchers.anyObject());
+    Mockito.verify(this.relay).wake();
+  }
+
+  @Test
+  public void testDiscardOnRollback() {
+    this.listener.begun();
+    EntityChanges.record(Object.class, 1L);
+    Outbox.publish(this.em, "created", "{}");
+
+    this.listener.rolledBack();
+
+    Assert.assertFalse(EntityChanges.isStarted());
+    Assert.assertFalse(Outbox.take());
+    Mockito.verifyZeroInteractions(this.publisher, this.relay);
+  }
+
+  @Test
+  public void testDiscardOnFailedCommit() {
+    this.listener.begun();
+    EntityChanges.record(Object.class, 1L);
+    Outbox.publish(this.em, "created", "{}");
+
+    this.listener.afterCommit(this.listener.beforeCommit(), false);
+
+    Assert.assertFalse(EntityChanges.isStarted());
+    Assert.assertFalse(Outbox.take());
+    Mockito.verifyZeroInteractions(this.publisher, this.relay);
+  }
+
+  @Test
+  public void testProfileCommitOfCaller() throws Exception {
+    Method method = PersistenceTransactionListenerTest.class.getMethod("caller");
+    PersistenceProfiler.getInstance().setEnabled(true);
+
+    Object state = this.listener.enter(method);
+    try {
+      this.listener.begun();
+      this.listener.afterCommit(this.listener.beforeCommit(), true);
+    } finally {
+      this.listener.exit(state);
+    }
+
+    List<PersistenceProfiler.Entry> entries = PersistenceProfiler.getInstance().getEntries();
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals(PersistenceProfiler.COMMIT, entries.get(0).getOperation());
+    Assert.assertEquals(PersistenceTransactionListenerTest.class.getName() + ".caller", entries.get(0).getCaller());
+  }
+
+  @Test
+  public void testNotProfiled() throws Exception {
+    Object state = this.listener.enter(PersistenceTransactionListenerTest.class.getMethod("caller"));
+    this.listener.exit(state);
+
+    Assert.assertSame(state, this.listener.enter(null));
+  }
+}
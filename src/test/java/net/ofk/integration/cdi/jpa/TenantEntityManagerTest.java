@@ -0,0 +1,85 @@
+package net.ofk.integration.cdi.jpa;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class TenantEntityManagerTest {
+  private TenantEntityManager em;
+  private EntityManagerFactoryStore store;
+  private TenantResolver resolver;
+
+  @Before
+  public void setUp() {
+    this.store = Mockito.mock(EntityManagerFactoryStore.class);
+    this.resolver = Mockito.mock(TenantResolver.class);
+    this.em = new TenantEntityManager(this.resolver, this.store);
+  }
+
+  @Test
+  public void testRoutesToTenant() {
+    Thread thread = Thread.currentThread();
+    EntityManager em1 = Mockito.mock(EntityManager.class);
+    EntityManager em2 = Mockito.mock(EntityManager.class);
+    Object entity = new Object();
+
+    Mockito.doReturn(em1).when(this.store).acquire("tenant1", thread);
+    Mockito.doReturn(em2).when(this.store).acquire("tenant2", thread);
+
+    Mockito.doReturn("tenant1").when(this.resolver).resolvePUName();
+    this.em.persist(entity);
+    Assert.assertEquals("tenant1", this.em.getPUName());
+
+    Mockito.doReturn("tenant2").when(this.resolver).resolvePUName();
+    this.em.persist(entity);
+    this.em.remove(entity);
+
+    Mockito.verify(em1).persist(entity);
+    Mockito.verify(em2).persist(entity);
+    Mockito.verify(em2).remove(entity);
+    Mockito.verify(this.store).acquire("tenant2", thread);
+
+    this.em.close();
+
+    Mockito.verify(this.store).release("tenant1", thread);
+    Mockito.verify(this.store).release("tenant2", thread);
+    Assert.assertTrue(this.em.getTenantEMs().isEmpty());
+  }
+
+  @Test
+  public void testGetEntityManagerFactory() {
+    EntityManagerFactory emf = Mockito.mock(EntityManagerFactory.class);
+
+    Mockito.doReturn("tenant1").when(this.resolver).resolvePUName();
+    Mockito.doReturn(emf).when(this.store).pin("tenant1");
+
+    Assert.assertEquals(emf, this.em.getEntityManagerFactory());
+    Assert.assertTrue(this.em.isOpen());
+  }
+
+  @Test
+  public void testPruneIdleTenants() {
+    Mockito.doReturn(Mockito.mock(EntityManager.class)).when(this.store).acquire("tenant0", Thread.currentThread());
+
+    Mockito.doReturn("tenant0").when(this.resolver).resolvePUName();
+    this.em.getEM();
+    for (int i = 1; i < 16; i++) {
+      Mockito.doReturn("tenant" + i).when(this.resolver).resolvePUName();
+      Assert.assertNull(this.em.findEM());
+    }
+    Assert.assertEquals(16, this.em.getTenantEMs().size());
+
+    Mockito.doReturn("tenant16").when(this.resolver).resolvePUName();
+    this.em.findEM();
+
+    Assert.assertEquals(ImmutableSet.of("tenant0", "tenant16"), this.em.getTenantEMs().keySet());
+  }
+}
@@ -0,0 +1,88 @@
+package net.ofk.integration.cdi.jpa;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.enterprise.context.ContextNotActiveException;
+import javax.enterprise.context.spi.Contextual;
+import javax.enterprise.context.spi.CreationalContext;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class UnitOfWorkContextTest {
+  private final UnitOfWorkContext context = new UnitOfWorkContext();
+
+  @After
+  public void tearDown() {
+    UnitOfWorkContext.end();
+  }
+
+  @Test
+  public void testIsActive() {
+    Assert.assertFalse(this.context.isActive());
+
+    UnitOfWorkContext.begin();
+    Assert.assertTrue(this.context.isActive());
+
+    UnitOfWorkContext.end();
+    Assert.assertFalse(this.context.isActive());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testNestedBegin() {
+    UnitOfWorkContext.begin();
+    UnitOfWorkContext.begin();
+  }
+
+  @Test(expected = ContextNotActiveException.class)
+  @SuppressWarnings("unchecked")
+  public void testGetInactive() {
+    this.context.get(Mockito.mock(Contextual.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testGet() {
+    Contextual<Object> contextual = Mockito.mock(Contextual.class);
+    CreationalContext<Object> creationalContext = Mockito.mock(CreationalContext.class);
+    Object instance = new Object();
+    Mockito.doReturn(instance).when(contextual).create(creationalContext);
+
+    UnitOfWorkContext.begin();
+
+    Assert.assertNull(this.context.get(contextual));
+    Assert.assertSame(instance, this.context.get(contextual, creationalContext));
+    Assert.assertSame(instance, this.context.get(contextual, creationalContext));
+    Assert.assertSame(instance, this.context.get(contextual));
+    Mockito.verify(contextual).create(creationalContext);
+
+    UnitOfWorkContext.end();
+
+    Mockito.verify(contextual).destroy(instance, creationalContext);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testEndDestroysAll() {
+    Contextual<Object> c1 = Mockito.mock(Contextual.class);
+    Contextual<Object> c2 = Mockito.mock(Contextual.class);
+    CreationalContext<Object> creationalContext = Mockito.mock(CreationalContext.class);
+    Object i1 = new Object();
+    Object i2 = new Object();
+    Mockito.doReturn(i1).when(c1).create(creationalContext);
+    Mockito.doReturn(i2).when(c2).create(creationalContext);
+    Mockito.doThrow(new IllegalStateException()).when(c1).destroy(i1, creationalContext);
+
+    UnitOfWorkContext.begin();
+    this.context.get(c1, creationalContext);
+    this.context.get(c2, creationalContext);
+    UnitOfWorkContext.end();
+
+    Mockito.verify(c1).destroy(i1, creationalContext);
+    Mockito.verify(c2).destroy(i2, creationalContext);
+    Assert.assertFalse(this.context.isActive());
+  }
+}
@@ -0,0 +1,142 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import javax.enterprise.inject.spi.AnnotatedMethod;
+import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.ProcessAnnotatedType;
+import javax.interceptor.InvocationContext;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class AsyncTransactionInterceptorTest {
+  private String value;
+
+  public Future<String> async(final String value) {return CompletableFuture.completedFuture(value);}
+  public CompletionStage<String> pending() {return new CompletableFuture<>();}
+  public void fireAndForget(final String value) {this.value = value;}
+  public String sync() {return "a";}
+
+  @SuppressWarnings("unchecked")
+  private AsyncTransactionInterceptor interceptor() throws Exception {
+    CommitPipeline pipeline = mock(CommitPipeline.class);
+    AsyncTransactionInterceptor i = spy(new AsyncTransactionInterceptor());
+
+    doReturn(pipeline).when(i).getPipeline();
+    doAnswer(invocation -> {
+      CompletableFuture<Object> future = new CompletableFuture<>();
+      try {
+        future.complete(((Callable<?>) invocation.getArguments()[0]).call());
+      } catch (final Exception ex) {
+        future.completeExceptionally(ex);
+      }
+      return future;
+    }).when(pipeline).submit(any(Callable.class));
+
+    return i;
+  }
+
+  @Test
+  public void testIntercept() throws Exception {
+    InvocationContext ctx = mock(InvocationContext.class);
+    AsyncTransactionInterceptor i = this.interceptor();
+
+    doReturn(this).when(ctx).getTarget();
+    doReturn(AsyncTransactionInterceptorTest.class.getMethod("async", String.class)).when(ctx).getMethod();
+    doReturn(new Object[] {"a"}).when(ctx).getParameters();
+
+    Object result = i.intercept(ctx);
+
+    assertEquals("a", ((Future<?>) result).get());
+    verify(ctx, never()).proceed();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testInterceptVoid() throws Exception {
+    InvocationContext ctx = mock(InvocationContext.class);
+    AsyncTransactionInterceptor i = this.interceptor();
+
+    doReturn(this).when(ctx).getTarget();
+    doReturn(AsyncTransactionInterceptorTest.class.getMethod("fireAndForget", String.class)).when(ctx).getMethod();
+    doReturn(new Object[] {"b"}).when(ctx).getParameters();
+
+    assertNull(i.intercept(ctx));
+    assertEquals("b", this.value);
+    verify(i.getPipeline()).submit(any(Callable.class));
+  }
+
+  @Test
+  public void testInterceptPendingFuture() throws Exception {
+    InvocationContext ctx = mock(InvocationContext.class);
+    AsyncTransactionInterceptor i = this.interceptor();
+
+    doReturn(this).when(ctx).getTarget();
+    doReturn(AsyncTransactionInterceptorTest.class.getMethod("pending")).when(ctx).getMethod();
+
+    Object result = i.intercept(ctx);
+
+    try {
+      ((Future<?>) result).get();
+      fail();
+    } catch (final ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testInterceptUnsupported() throws Exception {
+    InvocationContext ctx = mock(InvocationContext.class);
+    AsyncTransactionInterceptor i = this.interceptor();
+
+    doReturn(AsyncTransactionInterceptorTest.class.getMethod("sync")).when(ctx).getMethod();
+
+    try {
+      i.intercept(ctx);
+      fail();
+    } catch (final IllegalStateException ex) {
+      verify(i.getPipeline(), never()).submit(any(Callable.class));
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testValidate() throws Exception {
+    ProcessAnnotatedType<AsyncTransactionInterceptorTest> event = mock(ProcessAnnotatedType.class);
+    AnnotatedType<AsyncTransactionInterceptorTest> type = mock(AnnotatedType.class);
+    AnnotatedMethod<AsyncTransactionInterceptorTest> async = mock(AnnotatedMethod.class);
+    AnnotatedMethod<AsyncTransactionInterceptorTest> sync = mock(AnnotatedMethod.class);
+
+    doReturn(type).when(event).getAnnotatedType();
+    doReturn(true).when(type).isAnnotationPresent(AsyncTransactional.class);
+    doReturn(ImmutableSet.of(async, sync)).when(type).getMethods();
+    doReturn(AsyncTransactionInterceptorTest.class.getMethod("async", String.class)).when(async).getJavaMember();
+    doReturn(AsyncTransactionInterceptorTest.class.getMethod("sync")).when(sync).getJavaMember();
+
+    AsyncTransactionalExtension extension = new AsyncTransactionalExtension();
+    extension.validate(event);
+
+    assertEquals(1, extension.getErrors().size());
+    assertTrue(extension.getErrors().get(0).contains("sync"));
+  }
+}
@@ -0,0 +1,339 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class CommitPipelineTest {
+  @Test
+  public void testCommitGroup() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+
+    CommitPipeline.Unit<String> u1 = new CommitPipeline.Unit<>(() -> "a");
+    CommitPipeline.Unit<String> u2 = new CommitPipeline.Unit<>(() -> "b");
+
+    p.commit(ImmutableList.of(u1, u2));
+
+    verify(tm).begin();
+    verify(tm).commit();
+    assertEquals("a", u1.getFuture().get());
+    assertEquals("b", u2.getFuture().get());
+  }
+
+  @Test
+  public void testFailedUnitIsNotExecutedAgain() throws Exception {
+    Exception exception = new Exception();
+    AtomicInteger calls1 = new AtomicInteger();
+    AtomicInteger calls2 = new AtomicInteger();
+    AtomicInteger calls3 = new AtomicInteger();
+
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(resources).when(p).getResources();
+    doReturn(Status.STATUS_ACTIVE).when(tm).getStatus();
+
+    CommitPipeline.Unit<String> u1 = new CommitPipeline.Unit<>(() -> calls1.incrementAndGet() > 0 ? "a" : null);
+    CommitPipeline.Unit<String> u2 = new CommitPipeline.Unit<>(() -> {
+      calls2.incrementAndGet();
+      throw exception;
+    });
+    CommitPipeline.Unit<String> u3 = new CommitPipeline.Unit<>(() -> calls3.incrementAndGet() > 0 ? "c" : null);
+
+    p.commit(ImmutableList.of(u1, u2, u3));
+
+    verify(tm, times(2)).begin();
+    verify(tm).rollback();
+    verify(tm).commit();
+    verify(resources, times(2)).beginUnitOfWork();
+    verify(resources, times(2)).endUnitOfWork();
+    assertEquals(2, calls1.get());
+    assertEquals(1, calls2.get());
+    assertEquals(1, calls3.get());
+    assertEquals("a", u1.getFuture().get());
+    assertEquals("c", u3.getFuture().get());
+    try {
+      u2.getFuture().get();
+      fail();
+    } catch (final ExecutionException ex) {
+      assertSame(exception, ex.getCause());
+    }
+  }
+
+  @Test
+  public void testFailedGroupCommitIsCommittedSeparately() throws Exception {
+    RollbackException exception = new RollbackException();
+
+    TransactionManager tm = mock(TransactionManager.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(Status.STATUS_NO_TRANSACTION).when(tm).getStatus();
+    doThrow(exception).doNothing().when(tm).commit();
+
+    CommitPipeline.Unit<String> u1 = new CommitPipeline.Unit<>(() -> "a");
+    CommitPipeline.Unit<String> u2 = new CommitPipeline.Unit<>(() -> "b");
+
+    p.commit(ImmutableList.of(u1, u2));
+
+    verify(tm, times(3)).begin();
+    verify(tm, times(3)).commit();
+    assertEquals("a", u1.getFuture().get());
+    assertEquals("b", u2.getFuture().get());
+  }
+
+  @Test
+  public void testUnitError() throws Exception {
+    Error error = new AssertionError();
+
+    TransactionManager tm = mock(TransactionManager.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(Status.STATUS_ACTIVE).when(tm).getStatus();
+
+    CommitPipeline.Unit<String> u = new CommitPipeline.Unit<>(() -> {throw error;});
+
+    p.commit(ImmutableList.of(u));
+
+    verify(tm).rollback();
+    try {
+      u.getFuture().get();
+      fail();
+    } catch (final ExecutionException ex) {
+      assertSame(error, ex.getCause());
+    }
+  }
+
+  @Test
+  public void testFailedCommit() throws Exception {
+    RollbackException exception = new RollbackException();
+
+    TransactionManager tm = mock(TransactionManager.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(Status.STATUS_NO_TRANSACTION).when(tm).getStatus();
+    doThrow(exception).when(tm).commit();
+
+    CommitPipeline.Unit<String> u = new CommitPipeline.Unit<>(() -> "a");
+
+    p.commit(ImmutableList.of(u));
+
+    try {
+      u.getFuture().get();
+      fail();
+    } catch (final ExecutionException ex) {
+      assertSame(exception, ex.getCause());
+    }
+  }
+
+  @Test
+  public void testSubmit() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+
+    try {
+      CompletableFuture<String> future = p.submit(() -> "a");
+
+      assertEquals("a", future.get(10, TimeUnit.SECONDS));
+      verify(tm).commit();
+    } finally {
+      p.stop();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSubmitAfterStop() throws Exception {
+    CommitPipeline p = new CommitPipeline();
+    p.stop();
+
+    p.submit(() -> "a");
+  }
+
+  @Test
+  public void testStopWhileSubmitting() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    TransactionManager tm = mock(TransactionManager.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    p.setCapacity(1);
+
+    try {
+      p.submit(() -> {
+        started.countDown();
+        return release.await(10, TimeUnit.SECONDS);
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      p.submit(() -> "queued");
+
+      // the queue is full, so the submitter waits until the pipeline is stopped
+      FutureTask<CompletableFuture<String>> submitter = new FutureTask<>(() -> p.submit(() -> "blocked"));
+      new Thread(submitter).start();
+      Thread.sleep(200);
+      assertFalse(submitter.isDone());
+
+      p.stop();
+
+      try {
+        submitter.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+        fail();
+      } catch (final ExecutionException ex) {
+        assertTrue(ex.getCause() instanceof IllegalStateException);
+      }
+    } finally {
+      release.countDown();
+      p.stop();
+    }
+  }
+
+  @Test
+  public void testCommitWithClosedGate() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionGate gate = new TransactionGate();
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(mock(TransactionListener.class)).when(p).getListener();
+    doReturn(tm).when(p).getTM();
+    doReturn(gate).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(Status.STATUS_NO_TRANSACTION).when(tm).getStatus();
+
+    CommitPipeline.Unit<String> u = new CommitPipeline.Unit<>(() -> "a");
+
+    gate.close();
+    p.commit(ImmutableList.of(u));
+
+    verify(tm, never()).begin();
+    try {
+      u.getFuture().get();
+      fail();
+    } catch (final ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof SystemException);
+    }
+  }
+
+  @Test
+  public void testNotifyListener() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(listener).when(p).getListener();
+    doReturn(Status.STATUS_ACTIVE).when(tm).getStatus();
+    doReturn(42L).when(listener).beforeCommit();
+
+    CommitPipeline.Unit<String> u1 = new CommitPipeline.Unit<>(() -> "a");
+    CommitPipeline.Unit<String> u2 = new CommitPipeline.Unit<>(() -> {
+      throw new Exception();
+    });
+
+    p.commit(ImmutableList.of(u1, u2));
+
+    // the group is rolled back and the rest is committed without the failed unit
+    InOrder inOrder = inOrder(listener, tm);
+    inOrder.verify(tm).begin();
+    inOrder.verify(listener).begun();
+    inOrder.verify(listener).rolledBack();
+    inOrder.verify(tm).rollback();
+    inOrder.verify(tm).begin();
+    inOrder.verify(listener).begun();
+    inOrder.verify(listener).beforeCommit();
+    inOrder.verify(tm).commit();
+    inOrder.verify(listener).afterCommit(42L, true);
+    assertEquals("a", u1.getFuture().get());
+  }
+
+  @Test
+  public void testListenerFailureAfterCommit() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(listener).when(p).getListener();
+    doThrow(new IllegalStateException()).when(listener).afterCommit(anyLong(), anyBoolean());
+
+    CommitPipeline.Unit<String> u = new CommitPipeline.Unit<>(() -> "a");
+
+    p.commit(ImmutableList.of(u));
+
+    verify(tm).commit();
+    verify(tm, never()).rollback();
+    assertEquals("a", u.getFuture().get());
+  }
+
+  @Test
+  public void testNotifyListenerOnFailedCommit() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    CommitPipeline p = spy(new CommitPipeline());
+    doReturn(tm).when(p).getTM();
+    doReturn(new TransactionGate()).when(p).getGate();
+    doReturn(mock(TransactionResources.class)).when(p).getResources();
+    doReturn(listener).when(p).getListener();
+    doReturn(Status.STATUS_NO_TRANSACTION).when(tm).getStatus();
+    doReturn(7L).when(listener).beforeCommit();
+    doThrow(new RollbackException()).when(tm).commit();
+
+    p.commit(ImmutableList.of(new CommitPipeline.Unit<>(() -> "a")));
+
+    verify(listener).afterCommit(7L, false);
+    verify(listener).rolledBack();
+  }
+}
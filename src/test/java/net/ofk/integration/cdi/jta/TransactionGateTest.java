@@ -0,0 +1,60 @@
+package net.ofk.integration.cdi.jta;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class TransactionGateTest {
+  @Test
+  public void testCloseAll() throws Exception {
+    TransactionGate g1 = new TransactionGate();
+    TransactionGate g2 = new TransactionGate();
+    g1.register();
+    g2.register();
+    ObjectName name = g1.getObjectName();
+    try {
+      assertTrue(TransactionGate.closeAll().containsAll(ImmutableSet.of(name, g2.getObjectName())));
+      assertFalse(g1.isOpen());
+      assertFalse(g2.isOpen());
+      assertTrue(TransactionGate.closeAll().isEmpty());
+
+      assertTrue(TransactionGate.openAll() >= 2);
+      assertTrue(g1.isOpen());
+      assertTrue(g2.isOpen());
+    } finally {
+      g1.unregister();
+      g2.unregister();
+    }
+
+    assertNull(g1.getObjectName());
+    assertFalse(TransactionGate.getMBeanServer().isRegistered(name));
+  }
+
+  @Test
+  public void testOpen() throws Exception {
+    TransactionGate g1 = new TransactionGate();
+    TransactionGate g2 = new TransactionGate();
+    g1.register();
+    g2.register();
+    try {
+      g1.close();
+      g2.close();
+
+      assertEquals(1, TransactionGate.open(ImmutableSet.of(g1.getObjectName(), new ObjectName(TransactionGate.OBJECT_NAME_PREFIX + "missing"))));
+      assertTrue(g1.isOpen());
+      assertFalse(g2.isOpen());
+    } finally {
+      g1.unregister();
+      g2.unregister();
+    }
+  }
+}
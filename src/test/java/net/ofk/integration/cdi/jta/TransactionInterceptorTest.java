@@ -1,29 +1,472 @@
 package net.ofk.integration.cdi.jta;
 
+import bitronix.tm.BitronixTransaction;
+import bitronix.tm.internal.XAResourceManager;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import javax.interceptor.InvocationContext;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
 import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.anyObject;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 /**
  * @author Konstantin I. key.offecka@runbox.com
  */
 public class TransactionInterceptorTest {
+  @Retry(maxAttempts = 2, delay = 1)
+  public void retried() {}
+
+  @ReadOnly
+  public void read() {}
+
+  @DeferredBegin
+  public void deferred() {}
+
+  @Test
+  public void testDeferredInterceptWithoutEM() throws Exception {
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(new TransactionGate()).when(i).getGate();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("deferred")).when(ctx).getMethod();
+    doReturn(tm).when(i).getTM();
+
+    i.intercept(ctx);
+
+    verify(tm, never()).begin();
+    verify(tm, never()).commit();
+    assertFalse(PendingTransaction.isPending());
+  }
+
+  @Test
+  public void testDeferredIntercept() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    Transaction tx = mock(Transaction.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(new TransactionGate()).when(i).getGate();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("deferred")).when(ctx).getMethod();
+    doReturn(tm).when(i).getTM();
+    doReturn(resources).when(i).getResources();
+    doReturn(new TransactionStatistics()).when(i).getStatistics();
+    doAnswer(invocation -> {
+      verify(tm, never()).begin();
+      PendingTransaction.start();
+      doReturn(tx).when(tm).getTransaction();
+      return object;
+    }).when(ctx).proceed();
+
+    Object result = i.intercept(ctx);
+    assertSame(result, object);
+
+    verify(tm).begin();
+    verify(resources).joinTransaction(Thread.currentThread());
+    verify(tm).commit();
+  }
+
+  @Test
+  public void testFailedDeferredIntercept() throws Exception {
+    Exception exception = new Exception();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(new TransactionGate()).when(i).getGate();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("deferred")).when(ctx).getMethod();
+    doReturn(tm).when(i).getTM();
+    doThrow(exception).when(ctx).proceed();
+
+    try {
+      i.intercept(ctx);
+      fail();
+    } catch (final Throwable ex) {
+      assertSame(exception, ex);
+    }
+
+    verify(tm, never()).begin();
+    verify(tm, never()).rollback();
+    assertFalse(PendingTransaction.isPending());
+  }
+
+  @Test
+  public void testGateClosedBeforeDeferredBegin() throws Exception {
+    TransactionGate gate = new TransactionGate();
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(gate).when(i).getGate();
+    doReturn(resources).when(i).getResources();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("deferred")).when(ctx).getMethod();
+    doReturn(tm).when(i).getTM();
+    doAnswer(invocation -> {
+      gate.close();
+      PendingTransaction.start();
+      return null;
+    }).when(ctx).proceed();
+
+    try {
+      i.intercept(ctx);
+      fail();
+    } catch (final PersistenceException ex) {
+      assertTrue(ex.getCause() instanceof SystemException);
+    }
+
+    verify(tm, never()).begin();
+    verify(resources, never()).joinTransaction(any(Thread.class));
+    assertFalse(PendingTransaction.isPending());
+  }
+
+  @Test
+  public void testBeginStartsPendingTransaction() throws Exception {
+    PendingTransaction.Begin begin = mock(PendingTransaction.Begin.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    Transaction tx = mock(Transaction.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(tm).when(i).getTM();
+    doReturn(tx).when(tm).getTransaction();
+
+    PendingTransaction.defer(begin);
+
+    assertSame(tx, i.begin());
+    verify(begin).begin();
+    verify(tm, never()).begin();
+  }
+
+  @Test
+  public void testNotifyListener() throws Exception {
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    Object state = new Object();
+    Method method = TransactionInterceptorTest.class.getMethod("retried");
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(new TransactionGate()).when(i).getGate();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
+    doReturn(listener).when(i).getListener();
+
+    doReturn(tm).when(i).getTM();
+    doReturn(new TransactionStatistics()).when(i).getStatistics();
+    doReturn(method).when(ctx).getMethod();
+    doReturn(state).when(listener).enter(method);
+    doReturn(42L).when(listener).beforeCommit();
+
+    i.intercept(ctx);
+
+    InOrder inOrder = inOrder(listener, tm);
+    inOrder.verify(listener).enter(method);
+    inOrder.verify(tm).begin();
+    inOrder.verify(listener).begun();
+    inOrder.verify(listener).beforeCommit();
+    inOrder.verify(tm).commit();
+    inOrder.verify(listener).afterCommit(42L, true);
+    inOrder.verify(listener).exit(state);
+    verify(listener, never()).rolledBack();
+  }
+
+  @Test
+  public void testListenerFailureAfterCommit() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(new TransactionGate()).when(i).getGate();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
+    doReturn(listener).when(i).getListener();
+
+    doReturn(tm).when(i).getTM();
+    doReturn(new TransactionStatistics()).when(i).getStatistics();
+    doThrow(new IllegalStateException()).when(listener).afterCommit(anyLong(), anyBoolean());
+    doReturn(object).when(ctx).proceed();
+
+    assertSame(object, i.intercept(ctx));
+
+    verify(tm).commit();
+    verify(tm, never()).rollback();
+  }
+
+  @Test
+  public void testNotifyListenerOnRollback() throws Exception {
+    Exception exception = new Exception();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    Transaction tx = mock(Transaction.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(new TransactionGate()).when(i).getGate();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
+    doReturn(listener).when(i).getListener();
+
+    doReturn(tm).when(i).getTM();
+    doAnswer(invocation -> {
+      doReturn(tx).when(tm).getTransaction();
+      throw exception;
+    }).when(ctx).proceed();
+
+    try {
+      i.intercept(ctx);
+      fail();
+    } catch (final Throwable ex) {
+      assertSame(exception, ex);
+    }
+
+    verify(tm).rollback();
+    verify(listener).begun();
+    verify(listener).rolledBack();
+    verify(listener, never()).beforeCommit();
+  }
+
+  @Test
+  public void testNotifyListenerOnFailedCommit() throws Exception {
+    RollbackException exception = new RollbackException();
+
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionListener listener = mock(TransactionListener.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(tm).when(i).getTM();
+    doReturn(listener).when(i).getListener();
+    doReturn(7L).when(listener).beforeCommit();
+    doThrow(exception).when(tm).commit();
+
+    try {
+      i.commit(null);
+      fail();
+    } catch (final RollbackException ex) {
+      assertSame(exception, ex);
+    }
+
+    verify(listener).afterCommit(7L, false);
+  }
+
+  @Test
+  public void testReadOnlyIntercept() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("read")).when(ctx).getMethod();
+    doReturn(object).when(ctx).proceed();
+    doReturn(tm).when(i).getTM();
+    doReturn(resources).when(i).getResources();
+
+    Object result = i.intercept(ctx);
+    assertSame(result, object);
+
+    verify(tm, never()).begin();
+    verify(i, never()).begin();
+    verify(resources).setReadOnly(Thread.currentThread(), true);
+    verify(resources).setReadOnly(Thread.currentThread(), false);
+    verify(resources).clear(Thread.currentThread());
+  }
+
+  @Test
+  public void testReadOnlyInterceptInTransaction() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    Transaction tx = mock(Transaction.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("read")).when(ctx).getMethod();
+    doReturn(object).when(ctx).proceed();
+    doReturn(tm).when(i).getTM();
+    doReturn(tx).when(tm).getTransaction();
+    doReturn(resources).when(i).getResources();
+
+    Object result = i.intercept(ctx);
+    assertSame(result, object);
+
+    verify(i).begin();
+    verify(i).commit(tx);
+    verify(resources, never()).setReadOnly(anyObject(), anyBoolean());
+  }
+
+  @Test
+  public void testWriteInReadOnlyIntercept() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+
+    doReturn(object).when(ctx).proceed();
+    doReturn(true).when(resources).isReadOnly(Thread.currentThread());
+    doReturn(resources).when(i).getResources();
+    doReturn(null).when(i).defer();
+    doNothing().when(i).commit(null);
+
+    Object result = i.intercept(ctx);
+    assertSame(result, object);
+
+    InOrder inOrder = inOrder(resources, i, ctx);
+    inOrder.verify(resources).setReadOnly(Thread.currentThread(), false);
+    inOrder.verify(i).defer();
+    inOrder.verify(ctx).proceed();
+    inOrder.verify(i).commit(null);
+    inOrder.verify(resources).setReadOnly(Thread.currentThread(), true);
+    verify(i, never()).begin();
+  }
+
+  @Test
+  public void testRetriedIntercept() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionStatistics statistics = new TransactionStatistics();
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("retried")).when(ctx).getMethod();
+    doThrow(new RuntimeException(new OptimisticLockException())).doReturn(object).when(ctx).proceed();
+    doReturn(null).when(i).begin();
+    doNothing().when(i).commit(null);
+    doNothing().when(i).rollback(null);
+    doNothing().when(i).sleep(anyLong());
+    doReturn(resources).when(i).getResources();
+    doReturn(statistics).when(i).getStatistics();
+
+    Object result = i.intercept(ctx);
+    assertSame(result, object);
+
+    verify(i, times(2)).begin();
+    verify(i).rollback(null);
+    verify(i).commit(null);
+    verify(resources).clear(Thread.currentThread());
+    assertEquals(1, statistics.getRetries());
+    assertEquals(0, statistics.getExhaustedRetries());
+  }
+
+  @Test
+  public void testExhaustedRetries() throws Exception {
+    SQLException exception = new SQLException("deadlock", "40P01");
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionStatistics statistics = new TransactionStatistics();
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("retried")).when(ctx).getMethod();
+    doThrow(exception).when(ctx).proceed();
+    doReturn(null).when(i).begin();
+    doNothing().when(i).rollback(null);
+    doNothing().when(i).sleep(anyLong());
+    doReturn(resources).when(i).getResources();
+    doReturn(statistics).when(i).getStatistics();
+
+    try {
+      i.intercept(ctx);
+      fail();
+    } catch (final Throwable ex) {
+      assertSame(exception, ex);
+    }
+
+    verify(i, times(2)).begin();
+    verify(i, times(2)).rollback(null);
+    verify(i, never()).commit(anyObject());
+    assertEquals(1, statistics.getRetries());
+    assertEquals(1, statistics.getExhaustedRetries());
+  }
+
+  @Test
+  public void testNotRetriedNestedIntercept() throws Exception {
+    OptimisticLockException exception = new OptimisticLockException();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    Transaction tx = mock(Transaction.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("retried")).when(ctx).getMethod();
+    doThrow(exception).when(ctx).proceed();
+    doReturn(tx).when(i).begin();
+    doNothing().when(i).rollback(tx);
+
+    try {
+      i.intercept(ctx);
+      fail();
+    } catch (final Throwable ex) {
+      assertSame(exception, ex);
+    }
+
+    verify(i).begin();
+    verify(i, never()).sleep(anyLong());
+  }
+
+  @Test
+  public void testIsRetryable() throws Exception {
+    TransactionInterceptor i = new TransactionInterceptor();
+    Retry retry = i.getRetry(TransactionInterceptorTest.class.getMethod("retried"));
+
+    assertTrue(i.isRetryable(retry, new RuntimeException(new SQLException("serialization", "40001"))));
+    assertFalse(i.isRetryable(retry, new SQLException("syntax", "42000")));
+    assertFalse(i.isRetryable(retry, new RuntimeException()));
+  }
+
+  @Test
+  public void testGetDelay() throws Exception {
+    TransactionInterceptor i = new TransactionInterceptor();
+    Retry retry = i.getRetry(TransactionInterceptorTest.class.getMethod("retried"));
+
+    long delay = i.getDelay(retry, 3);
+    assertTrue(delay >= 2 && delay <= 4);
+  }
+
   @Test
   public void testSucceededIntercept() throws Exception {
     Object object = new Object();
@@ -31,6 +474,8 @@ public class TransactionInterceptorTest {
     InvocationContext ctx = mock(InvocationContext.class);
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
 
     doReturn(object).when(ctx).proceed();
     doReturn(tx).when(i).begin();
@@ -51,6 +496,8 @@ public class TransactionInterceptorTest {
     InvocationContext ctx = mock(InvocationContext.class);
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
 
     doThrow(exception).when(ctx).proceed();
     doReturn(tx).when(i).begin();
@@ -74,6 +521,8 @@ public class TransactionInterceptorTest {
 
     InvocationContext ctx = mock(InvocationContext.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
 
     doThrow(exception).when(i).begin();
 
@@ -97,6 +546,8 @@ public class TransactionInterceptorTest {
     InvocationContext ctx = mock(InvocationContext.class);
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(mock(TransactionResources.class)).when(i).getResources();
 
     doThrow(exception).when(i).commit(tx);
     doReturn(tx).when(i).begin();
@@ -114,10 +565,50 @@ public class TransactionInterceptorTest {
     verify(i).commit(tx);
   }
 
+  /**
+   * The transaction manager disassociates the transaction from the thread when the commit fails,
+   * so the rollback has nothing to roll back and the original error reaches the retry.
+   */
+  @Test
+  public void testRetriedFailedCommit() throws Exception {
+    Object object = new Object();
+
+    InvocationContext ctx = mock(InvocationContext.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionResources resources = mock(TransactionResources.class);
+    TransactionStatistics statistics = new TransactionStatistics();
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(new TransactionGate()).when(i).getGate();
+
+    doReturn(TransactionInterceptorTest.class.getMethod("retried")).when(ctx).getMethod();
+    doReturn(object).when(ctx).proceed();
+    doReturn(null).when(tm).getTransaction();
+    doNothing().when(i).sleep(anyLong());
+    doReturn(tm).when(i).getTM();
+    doReturn(resources).when(i).getResources();
+    doReturn(statistics).when(i).getStatistics();
+
+    RollbackException failure = new RollbackException();
+    failure.initCause(new OptimisticLockException());
+    doThrow(failure).doNothing().when(tm).commit();
+
+    Object result = i.intercept(ctx);
+    assertSame(result, object);
+
+    verify(tm, times(2)).begin();
+    verify(tm, times(2)).commit();
+    verify(tm, never()).rollback();
+    verify(resources).clear(Thread.currentThread());
+    assertEquals(1, statistics.getRetries());
+  }
+
   @Test
   public void testBegin() throws Exception {
     TransactionManager tm = mock(TransactionManager.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(new TransactionGate()).when(i).getGate();
     doReturn(tm).when(i).getTM();
     doReturn(null).when(tm).getTransaction();
 
@@ -126,11 +617,48 @@ public class TransactionInterceptorTest {
     verify(tm).begin();
   }
 
+  @Test
+  public void testBeginWithClosedGate() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(tm).when(i).getTM();
+    doReturn(null).when(tm).getTransaction();
+
+    TransactionGate gate = new TransactionGate();
+    gate.close();
+    doReturn(gate).when(i).getGate();
+
+    try {
+      i.begin();
+      fail();
+    } catch (final SystemException ex) {
+      verify(tm, never()).begin();
+    }
+  }
+
+  @Test
+  public void testJoinWithClosedGate() throws Exception {
+    Transaction tx = mock(Transaction.class);
+    TransactionManager tm = mock(TransactionManager.class);
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+    doReturn(tm).when(i).getTM();
+    doReturn(tx).when(tm).getTransaction();
+
+    TransactionGate gate = new TransactionGate();
+    gate.close();
+    doReturn(gate).when(i).getGate();
+
+    assertSame(tx, i.begin());
+  }
+
   @Test
   public void testByPassBegin() throws Exception {
     Transaction tx = mock(Transaction.class);
     TransactionManager tm = mock(TransactionManager.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
     doReturn(tm).when(i).getTM();
     doReturn(tx).when(tm).getTransaction();
 
@@ -143,6 +671,7 @@ public class TransactionInterceptorTest {
   public void testByPassCommit() throws Exception {
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
 
     i.commit(tx);
 
@@ -153,6 +682,7 @@ public class TransactionInterceptorTest {
   public void testCommit() throws Exception {
     TransactionManager tm = mock(TransactionManager.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
 
     doReturn(tm).when(i).getTM();
 
@@ -161,11 +691,36 @@ public class TransactionInterceptorTest {
     verify(tm).commit();
   }
 
+  @Test
+  public void testCommitCountsResources() throws Exception {
+    TransactionManager tm = mock(TransactionManager.class);
+    BitronixTransaction tx = mock(BitronixTransaction.class);
+    XAResourceManager resourceManager = mock(XAResourceManager.class);
+    TransactionStatistics statistics = new TransactionStatistics();
+    TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
+
+    doReturn(tm).when(i).getTM();
+    doReturn(statistics).when(i).getStatistics();
+    doReturn(tx).when(tm).getTransaction();
+    doReturn(resourceManager).when(tx).getResourceManager();
+    doReturn(1).doReturn(2).when(resourceManager).size();
+
+    i.commit(null);
+    i.commit(null);
+
+    verify(tm, times(2)).commit();
+    assertEquals(1, statistics.getOnePhaseCommits());
+    assertEquals(1, statistics.getTwoPhaseCommits());
+    assertEquals(0, statistics.getEmptyCommits());
+  }
+
   @Test
   public void testByPassRollback() throws Exception {
     TransactionManager tm = mock(TransactionManager.class);
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
 
     doReturn(tm).when(i).getTM();
     doReturn(tx).when(tm).getTransaction();
@@ -181,6 +736,7 @@ public class TransactionInterceptorTest {
     TransactionManager tm = mock(TransactionManager.class);
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
 
     doReturn(tm).when(i).getTM();
     doReturn(tx).when(tm).getTransaction();
@@ -196,6 +752,7 @@ public class TransactionInterceptorTest {
     TransactionManager tm = mock(TransactionManager.class);
     Transaction tx = mock(Transaction.class);
     TransactionInterceptor i = spy(new TransactionInterceptor());
+    doReturn(mock(TransactionListener.class)).when(i).getListener();
 
     doReturn(tm).when(i).getTM();
     doReturn(tx).when(tm).getTransaction();
@@ -0,0 +1,46 @@
+package net.ofk.integration.jetty.bitronix;
+
+import bitronix.tm.journal.TransactionLogRecord;
+import bitronix.tm.utils.Uid;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import javax.transaction.Status;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class MemoryJournalTest {
+  @Test
+  public void testLog() {
+    Uid gtrid1 = new Uid(new byte[] {1});
+    Uid gtrid2 = new Uid(new byte[] {2});
+    MemoryJournal journal = new MemoryJournal();
+
+    journal.log(Status.STATUS_ACTIVE, gtrid1, ImmutableSet.of("ds1"));
+    journal.log(Status.STATUS_COMMITTING, gtrid1, ImmutableSet.of("ds1", "ds2"));
+    journal.log(Status.STATUS_COMMITTING, gtrid2, ImmutableSet.of("ds1"));
+    journal.log(Status.STATUS_COMMITTED, gtrid1, ImmutableSet.of("ds1"));
+    journal.log(Status.STATUS_COMMITTED, gtrid2, ImmutableSet.of("ds1"));
+
+    Map<Uid, TransactionLogRecord> records = journal.collectDanglingRecords();
+
+    assertEquals(1, records.size());
+    assertEquals(ImmutableSet.of("ds2"), records.get(gtrid1).getUniqueNames());
+    assertEquals(Status.STATUS_COMMITTING, records.get(gtrid1).getStatus());
+  }
+
+  @Test
+  public void testShutdown() {
+    MemoryJournal journal = new MemoryJournal();
+    journal.log(Status.STATUS_COMMITTING, new Uid(new byte[] {1}), ImmutableSet.of("ds1"));
+
+    journal.shutdown();
+
+    assertTrue(journal.collectDanglingRecords().isEmpty());
+  }
+}
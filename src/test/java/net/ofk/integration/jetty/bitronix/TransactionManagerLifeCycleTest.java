@@ -0,0 +1,218 @@
+package net.ofk.integration.jetty.bitronix;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.Configuration;
+import com.google.common.collect.ImmutableMap;
+import net.ofk.integration.cdi.jta.TransactionGate;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Konstantin I. key.offecka@runbox.com
+ */
+public class TransactionManagerLifeCycleTest {
+  @Test
+  public void testConfigure() {
+    Configuration configuration = mock(Configuration.class);
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+    doReturn(60).when(configuration).getBackgroundRecoveryIntervalSeconds();
+    lc.setFilterLogStatus(true);
+
+    lc.configure(configuration);
+
+    verify(configuration).setFilterLogStatus(true);
+  }
+
+  @Test
+  public void testConfigureDefaults() {
+    Configuration configuration = mock(Configuration.class);
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+    doReturn(60).when(configuration).getBackgroundRecoveryIntervalSeconds();
+
+    lc.configure(configuration);
+
+    verify(configuration, never()).setFilterLogStatus(anyBoolean());
+    verify(configuration, never()).setJournal(anyString());
+    verify(configuration, never()).setAsynchronous2Pc(anyBoolean());
+  }
+
+  @Test
+  public void testConfigureProfile() {
+    Configuration configuration = mock(Configuration.class);
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+    doReturn(60).when(configuration).getBackgroundRecoveryIntervalSeconds();
+    lc.setProfile(TransactionManagerLifeCycle.HIGH_THROUGHPUT_PROFILE);
+    lc.setAsynchronous2Pc(false);
+    lc.setJournal("null");
+    lc.setBackgroundRecoveryIntervalSeconds(30);
+
+    lc.configure(configuration);
+
+    InOrder inOrder = inOrder(configuration);
+    inOrder.verify(configuration).setAsynchronous2Pc(true);
+    inOrder.verify(configuration).setAsynchronous2Pc(false);
+    verify(configuration).setForceBatchingEnabled(true);
+    verify(configuration).setFilterLogStatus(true);
+    verify(configuration).setJournal("null");
+    verify(configuration).setBackgroundRecoveryIntervalSeconds(30);
+  }
+
+  @Test
+  public void testConfigureMemoryJournal() {
+    Configuration configuration = mock(Configuration.class);
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+    doReturn(60).when(configuration).getBackgroundRecoveryIntervalSeconds();
+    lc.setJournal("memory");
+
+    lc.configure(configuration);
+
+    verify(configuration).setJournal(MemoryJournal.class.getName());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigureUnknownProfile() {
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+    lc.setProfile("fast");
+
+    lc.configure(mock(Configuration.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testValidate() {
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+
+    lc.configure(mock(Configuration.class));
+  }
+
+  @Test
+  public void testDrain() throws Exception {
+    BitronixTransactionManager tm = mock(BitronixTransactionManager.class);
+    TransactionManagerLifeCycle lc = spy(new TransactionManagerLifeCycle());
+    lc.setDrainTimeout(10);
+    doNothing().when(lc).sleep(anyLong());
+    doReturn(ImmutableMap.of("tx1", "tx1", "tx2", "tx2")).doReturn(ImmutableMap.of("tx2", "tx2")).doReturn(ImmutableMap.of()).when(tm).getInFlightTransactions();
+
+    lc.drain(tm);
+
+    verify(lc, times(2)).sleep(anyLong());
+  }
+
+  @Test
+  public void testDrainTimeout() throws Exception {
+    BitronixTransactionManager tm = mock(BitronixTransactionManager.class);
+    TransactionManagerLifeCycle lc = spy(new TransactionManagerLifeCycle());
+    lc.setDrainTimeout(0);
+    doReturn(ImmutableMap.of("tx1", "tx1")).when(tm).getInFlightTransactions();
+
+    lc.drain(tm);
+
+    verify(lc, never()).sleep(anyLong());
+    verify(tm, times(2)).getInFlightTransactions();
+  }
+
+  @Test
+  public void testConfigureDrainTimeout() {
+    Configuration configuration = mock(Configuration.class);
+    TransactionManagerLifeCycle lc = new TransactionManagerLifeCycle();
+    doReturn(60).when(configuration).getBackgroundRecoveryIntervalSeconds();
+    lc.setDrainTimeout(30);
+
+    lc.configure(configuration);
+
+    verify(configuration).setGracefulShutdownInterval(0);
+  }
+
+  @Test
+  public void testStartInBackground() throws Exception {
+    RuntimeException exception = new RuntimeException();
+
+    TransactionManagerLifeCycle lc = spy(new TransactionManagerLifeCycle());
+    doThrow(exception).when(lc).startTransactionManager();
+
+    lc.startInBackground();
+    lc.awaitStart();
+
+    verify(lc).startTransactionManager();
+    assertFalse(lc.isRecovering());
+    assertSame(exception, lc.getStartupFailure());
+  }
+
+  @Test
+  public void testStartInBackgroundError() throws Exception {
+    Error error = new ExceptionInInitializerError();
+
+    TransactionManagerLifeCycle lc = spy(new TransactionManagerLifeCycle());
+    doThrow(error).when(lc).startTransactionManager();
+
+    lc.startInBackground();
+    lc.awaitStart();
+
+    assertFalse(lc.isRecovering());
+    assertSame(error, lc.getStartupFailure());
+  }
+
+  @Test
+  public void testStopAfterFailedStart() throws Exception {
+    TransactionManagerLifeCycle lc = spy(new TransactionManagerLifeCycle());
+    lc.setDrainTimeout(10);
+    doThrow(new RuntimeException()).when(lc).startTransactionManager();
+
+    lc.startInBackground();
+    lc.doStop();
+
+    verify(lc, never()).getTM();
+    verify(lc, never()).drain(any(BitronixTransactionManager.class));
+  }
+
+  @Test
+  public void testReopenOnlyClosedGates() throws Exception {
+    BitronixTransactionManager tm = mock(BitronixTransactionManager.class);
+    TransactionGate g1 = new TransactionGate();
+    TransactionGate g2 = new TransactionGate();
+    TransactionManagerLifeCycle lc = spy(new TransactionManagerLifeCycle());
+    lc.setDrainTimeout(0);
+    doReturn(tm).when(lc).getTM();
+    doReturn(ImmutableMap.of()).when(tm).getInFlightTransactions();
+
+    g1.register();
+    g2.register();
+    try {
+      // closed by an operator before the shutdown
+      g2.close();
+
+      lc.doStop();
+
+      assertFalse(g1.isOpen());
+      assertEquals(1, lc.getClosedGates().size());
+      verify(tm).shutdown();
+
+      lc.startTransactionManager();
+
+      assertTrue(g1.isOpen());
+      assertFalse(g2.isOpen());
+      assertTrue(lc.getClosedGates().isEmpty());
+    } finally {
+      g1.unregister();
+      g2.unregister();
+    }
+  }
+}